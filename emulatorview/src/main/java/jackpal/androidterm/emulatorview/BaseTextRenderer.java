@@ -30,6 +30,10 @@ abstract class BaseTextRenderer implements TextRenderer {
 
     protected int[] mPalette;
 
+    /* The true color table whose colors are in mPalette, and its version */
+    private TrueColorTable mTrueColorTable;
+    private int mTrueColorVersion;
+
     protected static final int[] sXterm256Paint = {
             // 16 original colors
             // First 8 are dim
@@ -376,8 +380,18 @@ public void setReverseVideo(boolean reverseVideo) {
         mReverseVideo = reverseVideo;
     }
 
+    public void setTrueColorTable(TrueColorTable table) {
+        int version = table.getVersion();
+        if (table != mTrueColorTable || version != mTrueColorVersion) {
+            table.copyColors(mPalette);
+            mTrueColorTable = table;
+            mTrueColorVersion = version;
+        }
+    }
+
     private void setDefaultColors(ColorScheme scheme) {
         mPalette = cloneDefaultColors();
+        mTrueColorTable = null;
         mPalette[TextStyle.ciForeground] = scheme.getForeColor();
         mPalette[TextStyle.ciBackground] = scheme.getBackColor();
         mPalette[TextStyle.ciCursorForeground] = scheme.getCursorForeColor();
@@ -386,7 +400,7 @@ private void setDefaultColors(ColorScheme scheme) {
 
     private static int[] cloneDefaultColors() {
         int length = sXterm256Paint.length;
-        int[] clone = new int[TextStyle.ciColorLength];
+        int[] clone = new int[TextStyle.ciPaletteLength];
         System.arraycopy(sXterm256Paint, 0, clone, 0, length);
         return clone;
     }
@@ -24,6 +24,7 @@
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.Locale;
 
 import android.content.Context;
 import android.graphics.Canvas;
@@ -118,6 +119,11 @@ public class EmulatorView extends View implements GestureDetector.OnGestureListe
 
     private Paint mBackgroundPaint;
 
+    /**
+     * Used to draw the amount of output the session fast-forwarded through.
+     */
+    private Paint mFastForwardPaint;
+
     private boolean mUseCookedIme;
 
     /**
@@ -234,6 +240,11 @@ public void run() {
      */
     private Hashtable<Integer,URLSpan[]> mLinkLayer = new Hashtable<Integer,URLSpan[]>();
 
+    /**
+     * The view of the row being searched for links, reused for every row.
+     */
+    private TranscriptRow mLinkRow = new TranscriptRow();
+
     /**
      * Accept links that start with http[s]:
      */
@@ -271,59 +282,37 @@ private boolean startsWith(CharSequence s, int start, int end,
     private int createLinks(int row)
     {
         TranscriptScreen transcriptScreen = mEmulator.getScreen();
-        char [] line = transcriptScreen.getScriptLine(row);
+        TranscriptRow rowView = mLinkRow;
         int lineCount = 1;
 
         //Nothing to do if there's no text.
-        if(line == null)
+        if(!transcriptScreen.getRow(row, rowView) || rowView.isBlank())
             return lineCount;
 
-        /* If this is not a basic line, the array returned from getScriptLine()
-         * could have arbitrary garbage at the end -- find the point at which
-         * the line ends and only include that in the text to linkify.
-         *
-         * XXX: The fact that the array returned from getScriptLine() on a
-         * basic line contains no garbage is an implementation detail -- the
-         * documented behavior explicitly allows garbage at the end! */
-        int lineLen;
-        boolean textIsBasic = transcriptScreen.isBasicLine(row);
-        if (textIsBasic) {
-            lineLen = line.length;
-        } else {
-            // The end of the valid data is marked by a NUL character
-            for (lineLen = 0; line[lineLen] != 0; ++lineLen);
-        }
-
-        SpannableStringBuilder textToLinkify = new SpannableStringBuilder(new String(line, 0, lineLen));
+        boolean textIsBasic = rowView.isBasic();
+        SpannableStringBuilder textToLinkify = new SpannableStringBuilder(
+                new String(rowView.getText(), 0, rowView.getTextIndex(rowView.getColumns())));
 
-        boolean lineWrap = transcriptScreen.getScriptLineWrap(row);
+        boolean lineWrap = rowView.getLineWrap();
 
         //While the current line has a wrap
         while (lineWrap)
         {
             //Get next line
             int nextRow = row + lineCount;
-            line = transcriptScreen.getScriptLine(nextRow);
 
             //If next line is blank, don't try and append
-            if(line == null)
+            if(!transcriptScreen.getRow(nextRow, rowView) || rowView.isBlank())
                 break;
 
-            boolean lineIsBasic = transcriptScreen.isBasicLine(nextRow);
-            if (textIsBasic && !lineIsBasic) {
-                textIsBasic = lineIsBasic;
-            }
-            if (lineIsBasic) {
-                lineLen = line.length;
-            } else {
-                // The end of the valid data is marked by a NUL character
-                for (lineLen = 0; line[lineLen] != 0; ++lineLen);
+            if (!rowView.isBasic()) {
+                textIsBasic = false;
             }
-
-            textToLinkify.append(new String(line, 0, lineLen));
+            textToLinkify.append(new String(rowView.getText(), 0,
+                    rowView.getTextIndex(rowView.getColumns())));
 
             //Check if line after next is wrapped
-            lineWrap = transcriptScreen.getScriptLineWrap(nextRow);
+            lineWrap = rowView.getLineWrap();
             ++lineCount;
         }
 
@@ -345,6 +334,8 @@ private int createLinks(int row)
                 Arrays.fill(linkRows[i], null);
             }
 
+            int[] cells = null;
+
             //For each URL:
             for(int urlNum=0; urlNum<urls.length; ++urlNum)
             {
@@ -367,39 +358,22 @@ private int createLinks(int row)
                     endRow   = spanLastPos / mColumns;
                     endCol   = spanLastPos % mColumns;
                 } else {
-                    /* Iterate over the line to get starting and ending columns
-                     * for this span */
-                    startRow = 0;
-                    startCol = 0;
-                    for (int i = 0; i < spanStart; ++i) {
-                        char c = textToLinkify.charAt(i);
-                        if (Character.isHighSurrogate(c)) {
-                            ++i;
-                            startCol += UnicodeTranscript.charWidth(c, textToLinkify.charAt(i));
-                        } else {
-                            startCol += UnicodeTranscript.charWidth(c);
-                        }
-                        if (startCol >= columns) {
-                            ++startRow;
-                            startCol %= columns;
-                        }
+                    /* Look up the cells of the first char of the span and
+                     * of the char after it in the rows' layouts */
+                    if (cells == null) {
+                        cells = getLinkCells(row, lineCount, textToLinkify.length());
                     }
-
-                    endRow = startRow;
-                    endCol = startCol;
-                    for (int i = spanStart; i < spanEnd; ++i) {
-                        char c = textToLinkify.charAt(i);
-                        if (Character.isHighSurrogate(c)) {
-                            ++i;
-                            endCol += UnicodeTranscript.charWidth(c, textToLinkify.charAt(i));
-                        } else {
-                            endCol += UnicodeTranscript.charWidth(c);
-                        }
-                        if (endCol >= columns) {
-                            ++endRow;
-                            endCol %= columns;
-                        }
+                    int startCell = cells[spanStart];
+                    int lastCell = cells[spanEnd - 1];
+                    int next = spanEnd;
+                    while (cells[next] == lastCell) {
+                        // Combining chars after the span belong to its last char
+                        ++next;
                     }
+                    startRow = startCell / columns;
+                    startCol = startCell % columns;
+                    endRow   = (cells[next] - 1) / columns;
+                    endCol   = (cells[next] - 1) % columns;
                 }
 
                 //Fill linkRows with the URL where appropriate
@@ -419,6 +393,34 @@ private int createLinks(int row)
         return lineCount;
     }
 
+    /**
+     * Find the cell each char of the text of a run of wrapped rows starts in,
+     * counting cells from the start of the first row, from the layout kept
+     * with each row.  The entry after the last char is the cell after the
+     * last row.
+     */
+    private int[] getLinkCells(int row, int lineCount, int length)
+    {
+        TranscriptScreen transcriptScreen = mEmulator.getScreen();
+        TranscriptRow rowView = mLinkRow;
+        int columns = mColumns;
+        int[] cells = new int[length + 1];
+        int index = 0;
+        for (int i = 0; i < lineCount; ++i) {
+            transcriptScreen.getRow(row + i, rowView);
+            for (int column = 0; column < columns; ) {
+                int nextColumn = column + rowView.getCharWidth(column);
+                int end = index + rowView.getTextIndex(nextColumn)
+                        - rowView.getTextIndex(column);
+                Arrays.fill(cells, index, end, i * columns + column);
+                index = end;
+                column = nextColumn;
+            }
+        }
+        cells[length] = lineCount * columns;
+        return cells;
+    }
+
     /**
      * Sends mouse wheel codes to terminal in response to fling.
      */
@@ -477,14 +479,16 @@ public void run() {
      */
     private UpdateCallback mUpdateNotify = new UpdateCallback() {
         public void onUpdate() {
-            if ( mIsSelectingText ) {
-                int rowShift = mEmulator.getScrollCounter();
-                mSelY1 -= rowShift;
-                mSelY2 -= rowShift;
-                mSelYAnchor -= rowShift;
+            synchronized (mTermSession.getEmulatorLock()) {
+                if ( mIsSelectingText ) {
+                    int rowShift = mEmulator.getScrollCounter();
+                    mSelY1 -= rowShift;
+                    mSelY2 -= rowShift;
+                    mSelYAnchor -= rowShift;
+                }
+                mEmulator.clearScrollCounter();
+                ensureCursorVisible();
             }
-            mEmulator.clearScrollCounter();
-            ensureCursorVisible();
             invalidate();
         }
     };
@@ -544,6 +548,8 @@ public void attachSession(TermSession session) {
         mTextRenderer = null;
         mForegroundPaint = new Paint();
         mBackgroundPaint = new Paint();
+        mFastForwardPaint = new Paint();
+        mFastForwardPaint.setAntiAlias(true);
         mTopRow = 0;
         mLeftColumn = 0;
         mGestureDetector = new GestureDetector(this);
@@ -1442,6 +1448,7 @@ private void updateText() {
         mBackgroundPaint.setColor(scheme.getBackColor());
         mCharacterWidth = mTextRenderer.getCharacterWidth();
         mCharacterHeight = mTextRenderer.getCharacterHeight();
+        mFastForwardPaint.setTextSize(mCharacterHeight * 0.8f);
 
         updateSize(true);
     }
@@ -1518,6 +1525,13 @@ protected void onDraw(Canvas canvas) {
             return;
         }
 
+        // Input may be processed on the session's emulation thread
+        synchronized (mTermSession.getEmulatorLock()) {
+            drawScreen(canvas);
+        }
+    }
+
+    private void drawScreen(Canvas canvas) {
         int w = getWidth();
         int h = getHeight();
 
@@ -1568,6 +1582,28 @@ protected void onDraw(Canvas canvas) {
             //createLinks always returns at least 1
             --linkLinesToSkip;
         }
+
+        long fastForwarded = mTermSession.getFastForwardedBytes();
+        if (fastForwarded > 0) {
+            drawFastForwardMarker(canvas, w, fastForwarded, reverseVideo);
+        }
+    }
+
+    /**
+     * Draw a label in the top right corner of the view showing how much output
+     * the session fast-forwarded through.
+     */
+    private void drawFastForwardMarker(Canvas canvas, int w, long bytes, boolean reverseVideo) {
+        String label = String.format(Locale.US, "fast-forwarded %.1f MB",
+                bytes / (1024.0 * 1024.0));
+        Paint paint = mFastForwardPaint;
+        float padding = mCharacterWidth / 2;
+        float left = w - paint.measureText(label) - 2 * padding;
+        float bottom = paint.descent() - paint.ascent() + 2 * padding;
+        canvas.drawRect(left, 0, w, bottom,
+                reverseVideo ? mBackgroundPaint : mForegroundPaint);
+        paint.setColor(reverseVideo ? mForegroundPaint.getColor() : mBackgroundPaint.getColor());
+        canvas.drawText(label, left + padding, padding - paint.ascent(), paint);
     }
 
     private void ensureCursorVisible() {
@@ -1610,7 +1646,9 @@ public boolean getSelectingText() {
      * @return A {@link String} with the selected text.
      */
     public String getSelectedText() {
-        return mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        synchronized (mTermSession.getEmulatorLock()) {
+            return mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2);
+        }
     }
 
     /**
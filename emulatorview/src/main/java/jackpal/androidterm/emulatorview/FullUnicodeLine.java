@@ -0,0 +1,580 @@
+/*
+ * Copyright (C) 2011 Steven Luo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * A representation of a line that's capable of handling non-BMP characters,
+ * East Asian wide characters, and combining characters.
+ *
+ * Each column of the line is a cell in an array of int[], holding the code
+ * point in that column, so that storing a character never moves the rest of
+ * the line.  The second column of an East Asian wide character holds
+ * WIDE_CONTINUATION.  A column whose contents are more than one code point
+ * (a character followed by combining characters) holds a negative index into
+ * a small side table of Strings with those contents.
+ *
+ * The text is also available packed into an array of char[], allowing easy
+ * conversion to a String and/or reuse by other string-handling functions.
+ * An array of short[] is used to keep track of the difference between a column
+ * and the starting index corresponding to its contents in the char[] array (so
+ * if column 42 starts at index 45 in the char[] array, the offset stored is 3).
+ * Column 0 always starts at index 0 in the char[] array, so we use that
+ * element of the array to keep track of how much of the char[] array we're
+ * using at the moment.  The packed form is built from the cells when it's
+ * first asked for after a change, and kept until the next change.
+ */
+class FullUnicodeLine {
+    private static final float SPARE_CAPACITY_FACTOR = 1.5f;
+
+    /** The cell value for the second column of an East Asian wide character. */
+    private static final int WIDE_CONTINUATION = -1;
+
+    private int[] mCells;
+    private int mColumns;
+
+    /* Contents of cells holding more than one code point; cell value -2 - i
+       refers to mCombined[i] */
+    private String[] mCombined;
+    private int mCombinedCount;
+
+    /* The packed form of the line, valid if mPacked is true */
+    private char[] mText;
+    private short[] mOffset;
+    private boolean mPacked;
+
+    public FullUnicodeLine(int columns) {
+        mColumns = columns;
+        mCells = new int[columns];
+        reset(null);
+    }
+
+    public FullUnicodeLine(char[] basicLine) {
+        mColumns = basicLine.length;
+        mCells = new int[mColumns];
+        reset(basicLine);
+    }
+
+    /**
+     * Create a line from its packed form.
+     */
+    private FullUnicodeLine(char[] text, short[] offset) {
+        int columns = offset.length;
+        mColumns = columns;
+        mCells = new int[columns];
+        mText = text;
+        mOffset = offset;
+        mPacked = true;
+
+        int spaceUsed = offset[0];
+        for (int column = 0; column < columns; ++column) {
+            int start = findStartOfColumn(column);
+            if (column > 0 && start == findStartOfColumn(column - 1)) {
+                mCells[column] = WIDE_CONTINUATION;
+                continue;
+            }
+            // Skip the second column of a wide character to find the end
+            int next = column + 1;
+            if (next < columns && findStartOfColumn(next) == start) {
+                ++next;
+            }
+            int end = next < columns ? findStartOfColumn(next) : spaceUsed;
+            int codePoint = Character.codePointAt(text, start);
+            if (Character.charCount(codePoint) == end - start) {
+                mCells[column] = codePoint;
+            } else {
+                mCells[column] = addCombined(new String(text, start, end - start));
+            }
+        }
+    }
+
+    /**
+     * Reuse the line's storage to hold the text of a basic line of the same
+     * width, or blanks if basicLine is null.
+     */
+    void reset(char[] basicLine) {
+        int[] cells = mCells;
+        int columns = mColumns;
+        if (basicLine == null) {
+            Arrays.fill(cells, ' ');
+        } else {
+            for (int i = 0; i < columns; ++i) {
+                cells[i] = basicLine[i];
+            }
+        }
+        if (mCombinedCount > 0) {
+            Arrays.fill(mCombined, 0, mCombinedCount, null);
+            mCombinedCount = 0;
+        }
+        mPacked = false;
+    }
+
+    /**
+     * Write the line in the form readFrom() expects: its packed form.
+     *
+     * The compressor thread writes rows while other threads read them, so
+     * this works from the cells alone and leaves the packed form alone.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        int[] cells = mCells;
+        int columns = mColumns;
+        int spaceUsed = 0;
+        for (int column = 0; column < columns; ++column) {
+            spaceUsed += getCellLength(cells[column]);
+        }
+        out.writeShort(spaceUsed);
+        for (int column = 0; column < columns; ++column) {
+            int cell = cells[column];
+            if (cell >= 0) {
+                if (Character.isSupplementaryCodePoint(cell)) {
+                    out.writeChar(Character.highSurrogate(cell));
+                    out.writeChar(Character.lowSurrogate(cell));
+                } else {
+                    out.writeChar(cell);
+                }
+            } else if (cell != WIDE_CONTINUATION) {
+                out.writeChars(mCombined[-2 - cell]);
+            }
+        }
+        int pos = getCellLength(cells[0]);
+        int start = 0;
+        for (int column = 1; column < columns; ++column) {
+            int cell = cells[column];
+            if (cell != WIDE_CONTINUATION) {
+                start = pos;
+                pos += getCellLength(cell);
+            }
+            out.writeShort(start - column);
+        }
+    }
+
+    /**
+     * The number of chars a cell takes in the packed form.
+     */
+    private int getCellLength(int cell) {
+        if (cell == WIDE_CONTINUATION) {
+            return 0;
+        } else if (cell >= 0) {
+            return Character.charCount(cell);
+        } else {
+            return mCombined[-2 - cell].length();
+        }
+    }
+
+    /**
+     * Read a line written by writeTo().
+     */
+    static FullUnicodeLine readFrom(DataInputStream in, int columns) throws IOException {
+        int spaceUsed = in.readShort();
+        char[] text = new char[Math.max(spaceUsed + 1, (int)(SPARE_CAPACITY_FACTOR*columns))];
+        for (int i = 0; i < spaceUsed; ++i) {
+            text[i] = in.readChar();
+        }
+        short[] offset = new short[columns];
+        offset[0] = (short) spaceUsed;
+        for (int i = 1; i < columns; ++i) {
+            offset[i] = in.readShort();
+        }
+        return new FullUnicodeLine(text, offset);
+    }
+
+    /**
+     * Whether a column holds a space.
+     */
+    boolean isBlank(int column) {
+        return mCells[column] == ' ';
+    }
+
+    /**
+     * Whether a column is the second column of an East Asian wide character.
+     */
+    boolean isWideContinuation(int column) {
+        return mCells[column] == WIDE_CONTINUATION;
+    }
+
+    /**
+     * The code point of the character in a column, or the first code point
+     * of a character with combining characters.  The second column of an East
+     * Asian wide character gives the wide character.
+     */
+    int getCodePoint(int column) {
+        int cell = mCells[column];
+        if (cell == WIDE_CONTINUATION) {
+            cell = mCells[column - 1];
+        }
+        if (cell >= 0) {
+            return cell;
+        }
+        return mCombined[-2 - cell].codePointAt(0);
+    }
+
+    /**
+     * The number of columns taken by the character starting in a column, or
+     * 0 if the column is the second column of an East Asian wide character.
+     */
+    int getCharWidth(int column) {
+        int[] cells = mCells;
+        if (cells[column] == WIDE_CONTINUATION) {
+            return 0;
+        }
+        if (column + 1 < mColumns && cells[column + 1] == WIDE_CONTINUATION) {
+            return 2;
+        }
+        return 1;
+    }
+
+    /**
+     * Copy w columns of the line into another line, or another part of this
+     * one.  Half of an East Asian wide character left at either end of the
+     * copied columns, or next to them in the destination, becomes a space.
+     */
+    void copyCells(int sx, FullUnicodeLine dst, int dx, int w) {
+        if (w <= 0) {
+            return;
+        }
+        int[] cells = mCells;
+        int[] dstCells = dst.mCells;
+        boolean splitStart = cells[sx] == WIDE_CONTINUATION;
+        boolean splitEnd = sx + w < mColumns && cells[sx + w] == WIDE_CONTINUATION;
+        boolean dstSplitStart = dstCells[dx] == WIDE_CONTINUATION;
+        boolean dstSplitEnd = dx + w < dst.mColumns
+                && dstCells[dx + w] == WIDE_CONTINUATION;
+
+        if (dst == this) {
+            String[] combined = null;
+            for (int i = 0; i < w; ++i) {
+                int cell = cells[sx + i];
+                if (cell < WIDE_CONTINUATION) {
+                    if (combined == null) {
+                        combined = new String[w];
+                    }
+                    combined[i] = mCombined[-2 - cell];
+                }
+            }
+            System.arraycopy(cells, sx, dstCells, dx, w);
+            if (combined != null) {
+                /* Each copy of a column with combining characters needs its
+                 * own side table entry: setChar() adds to an entry in place,
+                 * and compactCombined() expects one column per entry.  Clear
+                 * the copies before adding entries, since adding one may
+                 * compact the table. */
+                for (int i = 0; i < w; ++i) {
+                    if (combined[i] != null) {
+                        dstCells[dx + i] = ' ';
+                    }
+                }
+                for (int i = 0; i < w; ++i) {
+                    if (combined[i] != null) {
+                        dstCells[dx + i] = addCombined(combined[i]);
+                    }
+                }
+            }
+        } else {
+            for (int i = 0; i < w; ++i) {
+                int cell = cells[sx + i];
+                if (cell < WIDE_CONTINUATION) {
+                    cell = dst.addCombined(mCombined[-2 - cell]);
+                }
+                dstCells[dx + i] = cell;
+            }
+        }
+
+        if (dstSplitStart) {
+            dstCells[dx - 1] = ' ';
+        }
+        if (dstSplitEnd) {
+            dstCells[dx + w] = ' ';
+        }
+        if (splitStart) {
+            dstCells[dx] = ' ';
+        }
+        if (splitEnd) {
+            dstCells[dx + w - 1] = ' ';
+        }
+        dst.mPacked = false;
+    }
+
+    /**
+     * Get the largest code point in the line, or -1 if the line can't be
+     * stored as a basic line: it holds East Asian wide characters, combining
+     * characters or characters outside the BMP.
+     */
+    int getMaxBasicChar() {
+        int[] cells = mCells;
+        int max = 0;
+        for (int column = 0; column < mColumns; ++column) {
+            int cell = cells[column];
+            if (cell < 0 || cell > 0xffff) {
+                // Wide characters are always followed by WIDE_CONTINUATION
+                return -1;
+            }
+            if (cell > max) {
+                max = cell;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Copy the text of a line for which getMaxBasicChar() is below 0x100
+     * into a Latin-1 line.
+     */
+    void getLatin1Line(byte[] line) {
+        int[] cells = mCells;
+        for (int column = 0; column < mColumns; ++column) {
+            line[column] = (byte) cells[column];
+        }
+    }
+
+    /**
+     * Copy the text of a line for which getMaxBasicChar() isn't -1 into a
+     * basic line.
+     */
+    void getBasicLine(char[] line) {
+        int[] cells = mCells;
+        for (int column = 0; column < mColumns; ++column) {
+            line[column] = (char) cells[column];
+        }
+    }
+
+    /**
+     * Make a copy of the line with a different number of columns, cut off
+     * or padded with blanks at the end.
+     */
+    FullUnicodeLine withColumns(int columns) {
+        int keep = Math.min(columns, mColumns);
+        FullUnicodeLine line = new FullUnicodeLine(columns);
+        int[] cells = line.mCells;
+        for (int column = 0; column < keep; ++column) {
+            int cell = mCells[column];
+            if (cell < WIDE_CONTINUATION) {
+                cell = line.addCombined(mCombined[-2 - cell]);
+            }
+            cells[column] = cell;
+        }
+        if (keep < mColumns && mCells[keep] == WIDE_CONTINUATION) {
+            // Don't keep half of an East Asian wide character
+            cells[keep - 1] = ' ';
+        }
+        return line;
+    }
+
+    /**
+     * Add an entry to the side table, returning the cell value which refers
+     * to it.
+     */
+    private int addCombined(String contents) {
+        if (mCombined == null) {
+            mCombined = new String[4];
+        } else if (mCombinedCount == mCombined.length) {
+            compactCombined();
+        }
+        mCombined[mCombinedCount] = contents;
+        return -2 - mCombinedCount++;
+    }
+
+    /**
+     * Drop the side table entries which no cell refers to any more, growing
+     * the table if most entries are still in use.
+     */
+    private void compactCombined() {
+        String[] old = mCombined;
+        String[] combined = new String[old.length];
+        int count = 0;
+        int[] cells = mCells;
+        for (int column = 0; column < mColumns; ++column) {
+            if (cells[column] < WIDE_CONTINUATION) {
+                combined[count] = old[-2 - cells[column]];
+                cells[column] = -2 - count++;
+            }
+        }
+        if (2 * count > combined.length) {
+            combined = Arrays.copyOf(combined, 2 * combined.length);
+        }
+        mCombined = combined;
+        mCombinedCount = count;
+    }
+
+    /**
+     * Build the packed form of the line, if it isn't up to date.
+     */
+    private void pack() {
+        if (mPacked) {
+            return;
+        }
+        int columns = mColumns;
+        int[] cells = mCells;
+        char[] text = mText;
+        if (text == null || text.length < 2 * columns + 1) {
+            // Room for a surrogate pair in every column, and a NUL
+            text = mText = new char[Math.max(2 * columns + 1,
+                    (int)(SPARE_CAPACITY_FACTOR*columns))];
+        }
+        short[] offset = mOffset;
+        if (offset == null) {
+            offset = mOffset = new short[columns];
+        }
+
+        int pos = 0;
+        int start = 0;
+        for (int column = 0; column < columns; ++column) {
+            int cell = cells[column];
+            if (cell == WIDE_CONTINUATION) {
+                // Same start as the wide character in the previous column
+                offset[column] = (short) (start - column);
+                continue;
+            }
+            start = pos;
+            if (column > 0) {
+                offset[column] = (short) (pos - column);
+            }
+            if (cell >= 0) {
+                pos += Character.toChars(cell, text, pos);
+            } else {
+                String contents = mCombined[-2 - cell];
+                int length = contents.length();
+                if (pos + length + 1 > text.length) {
+                    text = mText = Arrays.copyOf(text, text.length + length + columns);
+                }
+                contents.getChars(0, length, text, pos);
+                pos += length;
+            }
+            if (text.length - pos < 2 * (columns - column)) {
+                text = mText = Arrays.copyOf(text, text.length + columns);
+            }
+        }
+        offset[0] = (short) pos;
+        text[pos] = 0;
+        mPacked = true;
+    }
+
+    public int getSpaceUsed() {
+        pack();
+        return mOffset[0];
+    }
+
+    public char[] getLine() {
+        pack();
+        return mText;
+    }
+
+    public int findStartOfColumn(int column) {
+        if (column == 0) {
+            return 0;
+        } else {
+            pack();
+            return column + mOffset[column];
+        }
+    }
+
+    public boolean getChar(int column, int charIndex, char[] out, int offset) {
+        int cell = mCells[column];
+        if (cell == WIDE_CONTINUATION) {
+            cell = mCells[column - 1];
+        }
+        int length;
+        if (cell >= 0) {
+            length = Character.charCount(cell);
+            if (charIndex >= length) {
+                throw new IllegalArgumentException();
+            }
+            if (length == 1) {
+                out[offset] = (char) cell;
+            } else if (charIndex == 0) {
+                out[offset] = (char) ((cell >>> 10) + (Character.MIN_HIGH_SURROGATE
+                        - (Character.MIN_SUPPLEMENTARY_CODE_POINT >>> 10)));
+            } else {
+                out[offset] = (char) ((cell & 0x3ff) + Character.MIN_LOW_SURROGATE);
+            }
+        } else {
+            String contents = mCombined[-2 - cell];
+            length = contents.length();
+            if (charIndex >= length) {
+                throw new IllegalArgumentException();
+            }
+            out[offset] = contents.charAt(charIndex);
+        }
+        return (charIndex + 1 < length);
+    }
+
+    public void setChar(int column, int codePoint) {
+        int columns = mColumns;
+        if (column < 0 || column >= columns) {
+            throw new IllegalArgumentException();
+        }
+        int[] cells = mCells;
+        mPacked = false;
+
+        int charWidth = UnicodeTranscript.charWidth(codePoint);
+        if (charWidth == 0) {
+            /* Combining characters are added to the contents of the column
+               instead of overwriting them, so that they modify the existing
+               contents */
+            if (cells[column] == WIDE_CONTINUATION) {
+                --column;
+            }
+            int cell = cells[column];
+            if (cell >= 0) {
+                StringBuilder contents = new StringBuilder(4);
+                contents.appendCodePoint(cell).appendCodePoint(codePoint);
+                cells[column] = addCombined(contents.toString());
+            } else {
+                StringBuilder contents = new StringBuilder(mCombined[-2 - cell]);
+                contents.appendCodePoint(codePoint);
+                mCombined[-2 - cell] = contents.toString();
+            }
+            return;
+        }
+
+        if (charWidth == 2 && column == columns - 1) {
+            // A width 2 character doesn't fit in the last column.
+            codePoint = ' ';
+            charWidth = 1;
+        }
+
+        /*
+         * Pad with spaces to preserve column alignment when we overwrite
+         * half of a wide character: the first column of one being replaced
+         * by a width 1 character leaves a space after it, and its second
+         * column being overwritten leaves a space before it.
+         */
+        if (cells[column] == WIDE_CONTINUATION) {
+            cells[column - 1] = ' ';
+        } else if (charWidth == 1 && column + 1 < columns
+                && cells[column + 1] == WIDE_CONTINUATION) {
+            cells[column + 1] = ' ';
+        }
+        cells[column] = codePoint;
+
+        /*
+         * A width 2 character clobbers the contents of the next column (if
+         * that is the first column of another wide character, its second
+         * column becomes a space)
+         */
+        if (charWidth == 2) {
+            if (column + 2 < columns && cells[column + 2] == WIDE_CONTINUATION
+                    && cells[column + 1] != WIDE_CONTINUATION) {
+                cells[column + 2] = ' ';
+            }
+            cells[column + 1] = WIDE_CONTINUATION;
+        }
+    }
+}
@@ -49,6 +49,19 @@ interface Screen {
      */
     void set(int x, int y, byte b, int style);
 
+    /**
+     * Store a run of regular-width BMP characters into the screen, starting at
+     * location (x, y). The run must fit on row y.
+     *
+     * @param x X coordinate (also known as column) of the first character
+     * @param y Y coordinate (also known as row)
+     * @param text the array holding the characters to store
+     * @param offset the index of the first character in text
+     * @param count the number of characters to store
+     * @param style the text style
+     */
+    void set(int x, int y, char[] text, int offset, int count, int style);
+
     /**
      * Scroll the screen down one line. To scroll the whole screen of a 24 line
      * screen, the arguments would be (0, 24).
@@ -59,6 +72,40 @@ interface Screen {
      */
     void scroll(int topMargin, int bottomMargin, int style);
 
+    /**
+     * Scroll the screen down several lines at once.  This has the same effect
+     * as calling {@link #scroll(int, int, int)} count times.
+     *
+     * @param topMargin First line that is scrolled.
+     * @param bottomMargin One line after the last line that is scrolled.
+     * @param count the number of lines to scroll, at most
+     *        bottomMargin - topMargin.
+     * @param style the style for the newly exposed lines.
+     */
+    void scroll(int topMargin, int bottomMargin, int count, int style);
+
+    /**
+     * Insert blank lines, moving the lines between row and the bottom margin
+     * down. Lines moved past the bottom margin are lost.
+     *
+     * @param row the row at which to insert lines.
+     * @param bottomMargin One line after the last line that is moved.
+     * @param count the number of lines to insert.
+     * @param style the style for the inserted lines.
+     */
+    void insertLines(int row, int bottomMargin, int count, int style);
+
+    /**
+     * Delete lines, moving the lines between row and the bottom margin up
+     * and inserting blank lines above the bottom margin.
+     *
+     * @param row the first row to be deleted.
+     * @param bottomMargin One line after the last line that is moved.
+     * @param count the number of lines to delete.
+     * @param style the style for the inserted blank lines.
+     */
+    void deleteLines(int row, int bottomMargin, int count, int style);
+
     /**
      * Block copy characters from one position in the screen to another. The two
      * positions can overlap. All characters of the source and destination must
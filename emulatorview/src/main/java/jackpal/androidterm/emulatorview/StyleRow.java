@@ -1,5 +1,9 @@
 package jackpal.androidterm.emulatorview;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /**
  * Utility class for dealing with text style lines.
  *
@@ -12,27 +16,119 @@
  *
  * Instead, we use an array of bytes and store the bytes of each int
  * consecutively in big-endian order.
+ *
+ * Most rows don't need even that: a row is stored as a single style until
+ * it has more than one, and then as a list of runs (the column at which each
+ * run starts, and its style) as long as the list stays short.  Only rows with
+ * many style changes use the array of bytes.
+ *
+ * A row can also be shared: an immutable solid row which any number of
+ * transcript rows with that style use at once.  Shared rows are never
+ * changed; a transcript row is given a private copy of its shared row before
+ * any of its styles change.
  */
 final class StyleRow {
+    /** The most runs we keep before switching to an array of bytes. */
+    private static final int MAX_RUNS = 32;
+
+    /* How writeTo() stores the row */
+    private static final int STORED_SOLID = 0;
+    private static final int STORED_RUNS = 1;
+    private static final int STORED_DATA = 2;
+
     private int mStyle;
     private int mColumns;
+    private final boolean mShared;
     /** Initially null, will be allocated when needed. */
     private byte[] mData;
 
+    /**
+     * Pairs of (start column, style), in order of column; the first run
+     * always starts at column 0.  Null unless the row is stored as runs.
+     */
+    private int[] mRuns;
+    private int mRunCount;
+    /** The run last looked up by get(), to speed up left-to-right scans. */
+    private int mLastRun;
+
     StyleRow(int style, int columns) {
+        this(style, columns, false);
+    }
+
+    private StyleRow(int style, int columns, boolean shared) {
         mStyle = style;
         mColumns = columns;
+        mShared = shared;
+    }
+
+    /**
+     * Create a shared, immutable row all in one style.
+     */
+    static StyleRow newShared(int style, int columns) {
+        return new StyleRow(style, columns, true);
+    }
+
+    boolean isShared() {
+        return mShared;
+    }
+
+    private void checkMutable() {
+        if (mShared) {
+            throw new IllegalStateException("Shared style rows can't be changed");
+        }
+    }
+
+    /**
+     * Make the whole row a single style again, so that the row can be
+     * reused for another line.
+     */
+    void reset(int style) {
+        checkMutable();
+        mStyle = style;
+        mData = null;
+        mRuns = null;
+        mRunCount = 0;
     }
 
     void set(int column, int style) {
-        if (style == mStyle && mData == null) {
-            return;
+        set(column, 1, style);
+    }
+
+    /**
+     * Set the style of a run of columns at once.
+     *
+     * @param column The first column of the run.
+     * @param count The number of columns in the run.
+     * @param style The style to store.
+     */
+    void set(int column, int count, int style) {
+        checkMutable();
+        if (mData == null) {
+            if (mRuns == null) {
+                if (style == mStyle) {
+                    return;
+                }
+                if (column == 0 && count == mColumns) {
+                    // The whole row takes the new style -- stay solid
+                    mStyle = style;
+                    return;
+                }
+                startRuns();
+            }
+            if (mRuns != null) {
+                setRuns(column, column + count, style);
+                return;
+            }
+        }
+        for (int i = column, end = column + count; i < end; i++) {
+            setStyle(i, style);
         }
-        ensureData();
-        setStyle(column, style);
     }
 
     int get(int column) {
+        if (mRuns != null) {
+            return getRunStyle(column);
+        }
         if (mData == null) {
             return mStyle;
         }
@@ -40,29 +136,95 @@ int get(int column) {
     }
 
     boolean isSolidStyle() {
-        return mData == null;
+        return mData == null && mRuns == null;
     }
 
     int getSolidStyle() {
-        if (mData != null) {
+        if (!isSolidStyle()) {
             throw new IllegalArgumentException("Not a solid style");
         }
         return mStyle;
     }
 
     void copy(int start, StyleRow dst, int offset, int len) {
-        // fast case
-        if (mData == null && dst.mData == null && start == 0 && offset == 0
+        // fast cases
+        if (isSolidStyle() && dst.isSolidStyle() && start == 0 && offset == 0
                 && len == mColumns) {
+            dst.checkMutable();
             dst.mStyle = mStyle;
             return;
         }
-        // There are other potentially fast cases, but let's just treat them
-        // all the same for simplicity.
-        ensureData();
-        dst.ensureData();
-        System.arraycopy(mData, 3*start, dst.mData, 3*offset, 3*len);
+        if (mData != null && dst.mData != null) {
+            System.arraycopy(mData, 3*start, dst.mData, 3*offset, 3*len);
+            return;
+        }
 
+        /* Copy a run of the same style at a time.  When copying within a
+           row, go in the direction which doesn't overwrite columns we
+           haven't copied yet. */
+        int end = start + len;
+        if (dst == this && offset > start) {
+            int column = end;
+            while (column > start) {
+                int style = get(column - 1);
+                int runStart = Math.max(start, findRunStart(column - 1));
+                dst.set(offset + runStart - start, column - runStart, style);
+                column = runStart;
+            }
+        } else {
+            int column = start;
+            while (column < end) {
+                int style = get(column);
+                int runEnd = Math.min(end, findRunEnd(column));
+                dst.set(offset + column - start, runEnd - column, style);
+                column = runEnd;
+            }
+        }
+    }
+
+    /**
+     * Write the row's styles in the form readFrom() expects.
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        if (mRuns != null) {
+            out.writeByte(STORED_RUNS);
+            out.writeShort(mRunCount);
+            for (int i = 0; i < mRunCount; i++) {
+                out.writeShort(mRuns[2*i]);
+                out.writeInt(mRuns[2*i+1]);
+            }
+        } else if (mData != null) {
+            out.writeByte(STORED_DATA);
+            out.write(mData);
+        } else {
+            out.writeByte(STORED_SOLID);
+            out.writeInt(mStyle);
+        }
+    }
+
+    /**
+     * Read a row's styles written by writeTo().
+     */
+    static StyleRow readFrom(DataInputStream in, int columns) throws IOException {
+        int stored = in.readByte();
+        if (stored == STORED_SOLID) {
+            return new StyleRow(in.readInt(), columns);
+        }
+        StyleRow row = new StyleRow(0, columns);
+        if (stored == STORED_RUNS) {
+            int count = in.readShort();
+            int[] runs = new int[2 * count];
+            for (int i = 0; i < count; i++) {
+                runs[2*i] = in.readShort();
+                runs[2*i+1] = in.readInt();
+            }
+            row.mRuns = runs;
+            row.mRunCount = count;
+        } else {
+            row.mData = new byte[3*columns];
+            in.readFully(row.mData);
+        }
+        return row;
     }
 
     void ensureData() {
@@ -73,8 +235,19 @@ void ensureData() {
 
     private void allocate() {
         mData = new byte[3*mColumns];
-        for (int i = 0; i < mColumns; i++) {
-            setStyle(i, mStyle);
+        if (mRuns != null) {
+            for (int i = 0; i < mRunCount; i++) {
+                int style = mRuns[2*i+1];
+                for (int column = mRuns[2*i], end = runEnd(i); column < end; column++) {
+                    setStyle(column, style);
+                }
+            }
+            mRuns = null;
+            mRunCount = 0;
+        } else {
+            for (int i = 0; i < mColumns; i++) {
+                setStyle(i, mStyle);
+            }
         }
     }
 
@@ -93,5 +266,159 @@ private void setStyle(int column, int value) {
         line[index+2] = (byte) ((value >> 16) & 0xff);
     }
 
+    /**
+     * The most runs worth keeping for this row: past that, the array of
+     * bytes is smaller (or the runs too slow to search).
+     */
+    private int maxRuns() {
+        return Math.min(MAX_RUNS, 3 * mColumns / 8);
+    }
+
+    /**
+     * Switch a solid row to a single run, or to an array of bytes if the
+     * row is too narrow for runs to be worthwhile.
+     */
+    private void startRuns() {
+        if (maxRuns() < 3) {
+            allocate();
+            return;
+        }
+        mRuns = new int[8];
+        mRuns[0] = 0;
+        mRuns[1] = mStyle;
+        mRunCount = 1;
+        mLastRun = 0;
+    }
+
+    private int getRunStyle(int column) {
+        int[] runs = mRuns;
+        int count = mRunCount;
+        int run = mLastRun;
+        if (run >= count || runs[2*run] > column) {
+            run = 0;
+        }
+        while (run + 1 < count && runs[2*(run+1)] <= column) {
+            run++;
+        }
+        mLastRun = run;
+        return runs[2*run+1];
+    }
+
+    /**
+     * Find the run containing a column.
+     */
+    private int findRun(int column) {
+        int[] runs = mRuns;
+        int low = 0;
+        int high = mRunCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (runs[2*mid] <= column) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The column after the end of a run.
+     */
+    private int runEnd(int run) {
+        return run + 1 < mRunCount ? mRuns[2*(run+1)] : mColumns;
+    }
 
+    /**
+     * The first column of the stretch of columns with the same style which
+     * contains the given column.
+     */
+    private int findRunStart(int column) {
+        if (mRuns != null) {
+            return mRuns[2*findRun(column)];
+        }
+        if (mData == null) {
+            return 0;
+        }
+        int style = getStyle(column);
+        while (column > 0 && getStyle(column - 1) == style) {
+            column--;
+        }
+        return column;
+    }
+
+    /**
+     * The column after the stretch of columns with the same style which
+     * contains the given column.
+     */
+    int findRunEnd(int column) {
+        if (mRuns != null) {
+            return runEnd(findRun(column));
+        }
+        if (mData == null) {
+            return mColumns;
+        }
+        int style = getStyle(column);
+        int columns = mColumns;
+        do {
+            column++;
+        } while (column < columns && getStyle(column) == style);
+        return column;
+    }
+
+    /**
+     * Set the style of columns start to end - 1 of a row stored as runs.
+     */
+    private void setRuns(int start, int end, int style) {
+        int first = findRun(start);
+        int last = findRun(end - 1);
+        int[] runs = mRuns;
+        int count = mRunCount;
+
+        /* Runs first to last are replaced by: run first, if it starts
+           before the columns being set; the new run; and whatever is left
+           of run last after them */
+        boolean keepFirst = runs[2*first] < start;
+        int lastStyle = runs[2*last+1];
+        boolean remainder = end < runEnd(last);
+        int replaced = last - first + 1;
+        int added = (keepFirst ? 1 : 0) + 1 + (remainder ? 1 : 0);
+        int newCount = count - replaced + added;
+
+        if (2 * newCount > runs.length) {
+            int[] newRuns = new int[Math.max(2 * newCount, 2 * runs.length)];
+            System.arraycopy(runs, 0, newRuns, 0, 2 * count);
+            runs = mRuns = newRuns;
+        }
+        System.arraycopy(runs, 2 * (last + 1), runs, 2 * (first + added),
+                2 * (count - last - 1));
+        int index = keepFirst ? first + 1 : first;
+        runs[2*index] = start;
+        runs[2*index+1] = style;
+        if (remainder) {
+            runs[2*index+2] = end;
+            runs[2*index+3] = lastStyle;
+        }
+
+        // Merge neighboring runs with the same style
+        int merged = 1;
+        for (int i = 1; i < newCount; i++) {
+            if (runs[2*i+1] != runs[2*(merged-1)+1]) {
+                runs[2*merged] = runs[2*i];
+                runs[2*merged+1] = runs[2*i+1];
+                merged++;
+            }
+        }
+        mRunCount = merged;
+        mLastRun = 0;
+
+        if (merged == 1) {
+            // Back to a single style
+            mStyle = runs[1];
+            mRuns = null;
+            mRunCount = 0;
+        } else if (merged > maxRuns()) {
+            allocate();
+        }
+    }
 }
@@ -16,6 +16,7 @@
 
 package jackpal.androidterm.emulatorview;
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -26,7 +27,10 @@
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
 
+import android.view.Choreographer;
+
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 
@@ -40,7 +44,9 @@
  * they might point to a network socket.  Reader and writer threads will be
  * spawned to do I/O to these streams.  All other operations, including
  * processing of input and output in {@link #processInput processInput} and
- * {@link #write(byte[], int, int) write}, will be performed on the main thread.
+ * {@link #write(byte[], int, int) write}, will be performed on the main thread,
+ * unless {@link #setUseEmulationThread} is used to move input processing to
+ * a thread of its own.
  * <p>
  * Call {@link #setTermIn} and {@link #setTermOut} to connect the input and
  * output streams to the emulator.  When all of your initialization is
@@ -83,17 +89,107 @@ public void setKeyListener(TermKeyListener l) {
     private ByteQueue mWriteQueue;
     private Handler mWriterHandler;
 
+    private boolean mUseEmulationThread;
+    private HandlerThread mEmulationThread;
+    /** The handler which processes input, on the main or emulation thread */
+    private Handler mInputHandler;
+
+    /**
+     * Held while the emulator's state is being changed or read, since input
+     * may be processed on the emulation thread.
+     */
+    private final Object mEmulatorLock = new Object();
+
+    /* Counted under the emulator lock, and by the writer thread */
+    private long mBytesIn;
+    private volatile long mBytesOut;
+
     private CharBuffer mWriteCharBuffer;
     private ByteBuffer mWriteByteBuffer;
     private CharsetEncoder mUTF8Encoder;
 
-    // Number of rows in the transcript
-    private static final int TRANSCRIPT_ROWS = 10000;
+    // Number of rows in the transcript by default
+    private static final int DEFAULT_TRANSCRIPT_ROWS = 10000;
+
+    private int mTranscriptRows = DEFAULT_TRANSCRIPT_ROWS;
+    private File mTranscriptOverflowDir;
 
     private static final int NEW_INPUT = 1;
     private static final int NEW_OUTPUT = 2;
     private static final int FINISH = 3;
     private static final int EOF = 4;
+    private static final int SYNCHRONIZED_UPDATE_TIMEOUT = 5;
+    private static final int SCREEN_UPDATE = 6;
+    private static final int TITLE_CHANGED = 7;
+    private static final int UTF8_MODE_CHANGED = 8;
+    private static final int FAST_FORWARD_DONE = 9;
+
+    /**
+     * The most input (in bytes) we process in one frame by default.
+     */
+    private static final int DEFAULT_FRAME_INPUT_BYTES = 256 * 1024;
+
+    /**
+     * The most time (in milliseconds) we spend processing input in one frame
+     * by default, leaving the rest of the frame for drawing.
+     */
+    private static final int DEFAULT_FRAME_INPUT_MS = 8;
+
+    private int mFrameInputBytes = DEFAULT_FRAME_INPUT_BYTES;
+    private long mFrameInputNanos = DEFAULT_FRAME_INPUT_MS * 1000000L;
+
+    /**
+     * The input rate (in bytes per second) above which we start
+     * fast-forwarding through output by default.
+     */
+    private static final int DEFAULT_FAST_FORWARD_RATE = 2 * 1024 * 1024;
+
+    /**
+     * The period over which the input rate is measured.
+     */
+    private static final long FAST_FORWARD_WINDOW_NANOS = 1000 * 1000000L;
+
+    /**
+     * How often the screen is redrawn while fast-forwarding.
+     */
+    private static final long FAST_FORWARD_REDRAW_NANOS = 500 * 1000000L;
+
+    /**
+     * How many of the most recent lines of output received while
+     * fast-forwarding are kept in the transcript.
+     */
+    private static final int FAST_FORWARD_TRANSCRIPT_ROWS = 1000;
+
+    /**
+     * How long (in milliseconds) the amount fast-forwarded stays on display
+     * after fast-forwarding ends.
+     */
+    private static final int FAST_FORWARD_MARKER_MS = 3000;
+
+    private int mFastForwardRate = DEFAULT_FAST_FORWARD_RATE;
+    private volatile boolean mFastForward;
+    private volatile long mFastForwardedBytes;
+
+    /* Only used on the thread which processes input */
+    private long mRateWindowStart;
+    private long mRateWindowBytes;
+    private long mLastRedraw;
+    private Choreographer mChoreographer;
+    private boolean mFrameCallbackPosted;
+    private Choreographer.FrameCallback mDrainInput = new Choreographer.FrameCallback() {
+        public void doFrame(long frameTimeNanos) {
+            mFrameCallbackPosted = false;
+            drainInput(mFrameInputBytes, mFrameInputNanos);
+        }
+    };
+
+    /**
+     * How long (in milliseconds) we hold back screen updates for an
+     * application which has started a synchronized update but not ended it.
+     */
+    private static final int SYNCHRONIZED_UPDATE_TIMEOUT_MS = 150;
+
+    private volatile boolean mSynchronizedUpdate;
 
     /**
      * Callback to be invoked when a {@link TermSession} finishes.
@@ -110,7 +206,7 @@ public interface FinishCallback {
     }
     private FinishCallback mFinishCallback;
 
-    private boolean mIsRunning = false;
+    private volatile boolean mIsRunning = false;
     private Handler mMsgHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -118,8 +214,33 @@ public void handleMessage(Message msg) {
                 return;
             }
             if (msg.what == NEW_INPUT) {
-                readFromProcess();
+                scheduleInputDrain();
+            } else if (msg.what == SCREEN_UPDATE) {
+                notifyUpdate();
+            } else if (msg.what == TITLE_CHANGED) {
+                notifyTitleChanged();
+            } else if (msg.what == UTF8_MODE_CHANGED) {
+                UpdateCallback utf8ModeNotify = mUTF8ModeNotify;
+                if (utf8ModeNotify != null) {
+                    utf8ModeNotify.onUpdate();
+                }
+            } else if (msg.what == FAST_FORWARD_DONE) {
+                if (!mFastForward) {
+                    mFastForwardedBytes = 0;
+                    notifyUpdate();
+                }
+            } else if (msg.what == SYNCHRONIZED_UPDATE_TIMEOUT) {
+                // The application never ended its update; show what we have
+                synchronized (mEmulatorLock) {
+                    setSynchronizedUpdate(false);
+                }
+                notifyUpdate();
             } else if (msg.what == EOF) {
+                /* An emulation thread processes the rest of the input itself
+                   before passing EOF on */
+                if (mEmulationThread == null) {
+                    drainInput(Integer.MAX_VALUE, Long.MAX_VALUE);
+                }
                 new Handler(Looper.getMainLooper()).post(new Runnable() {
                     @Override
                     public void run() {
@@ -131,6 +252,18 @@ public void run() {
     };
 
     private UpdateCallback mTitleChangedListener;
+    private UpdateCallback mUTF8ModeNotify;
+
+    /**
+     * Passed to the emulator in place of the UTF-8 mode callback when input
+     * is processed on the emulation thread, so that the callback still runs
+     * on the main thread.
+     */
+    private UpdateCallback mUTF8ModeChanged = new UpdateCallback() {
+        public void onUpdate() {
+            mMsgHandler.sendEmptyMessage(UTF8_MODE_CHANGED);
+        }
+    };
 
     public TermSession() {
         this(false);
@@ -144,7 +277,8 @@ public TermSession(final boolean exitOnEOF) {
         mUTF8Encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
 
         mReceiveBuffer = new byte[4 * 1024];
-        mByteQueue = new ByteQueue(4 * 1024);
+        mByteQueue = new ByteQueue(64 * 1024);
+        mInputHandler = mMsgHandler;
         mReaderThread = new Thread() {
             private byte[] mBuffer = new byte[4096];
 
@@ -163,15 +297,19 @@ public void run() {
                                     offset, read);
                             offset += written;
                             read -= written;
-                            mMsgHandler.sendMessage(
-                                    mMsgHandler.obtainMessage(NEW_INPUT));
+                            // Pending input is drained all at once
+                            if (!mInputHandler.hasMessages(NEW_INPUT)) {
+                                mInputHandler.sendMessage(
+                                        mInputHandler.obtainMessage(NEW_INPUT));
+                            }
                         }
                     }
                 } catch (IOException e) {
                 } catch (InterruptedException e) {
                 }
 
-                if (exitOnEOF) mMsgHandler.sendMessage(mMsgHandler.obtainMessage(EOF));
+                // Sent through the input handler so it arrives after the input
+                if (exitOnEOF) mInputHandler.sendMessage(mInputHandler.obtainMessage(EOF));
             }
         };
         mReaderThread.setName("TermSession input reader");
@@ -217,6 +355,7 @@ private void writeToOutput() {
                     writeQueue.read(buffer, 0, bytesToWrite);
                     termOut.write(buffer, 0, bytesToWrite);
                     termOut.flush();
+                    mBytesOut += bytesToWrite;
                 } catch (IOException e) {
                     // Ignore exception
                     // We don't really care if the receiver isn't listening.
@@ -241,16 +380,192 @@ protected void onProcessExit() {
      * @param rows The number of rows in the terminal window.
      */
     public void initializeEmulator(int columns, int rows) {
-        mTranscriptScreen = new TranscriptScreen(columns, TRANSCRIPT_ROWS, rows, mColorScheme);
+        mTranscriptScreen = new TranscriptScreen(columns, mTranscriptRows + rows, rows, mColorScheme);
+        if (mTranscriptOverflowDir != null) {
+            mTranscriptScreen.setOverflowDirectory(mTranscriptOverflowDir);
+        }
         mEmulator = new TerminalEmulator(this, mTranscriptScreen, columns, rows, mColorScheme);
         mEmulator.setDefaultUTF8Mode(mDefaultUTF8Mode);
         mEmulator.setKeyListener(mKeyListener);
 
+        if (mUseEmulationThread) {
+            startEmulationThread();
+        }
+
         mIsRunning = true;
         mReaderThread.start();
         mWriterThread.start();
     }
 
+    /**
+     * Set whether input from the process should be processed on a thread
+     * of its own instead of the main thread.  This keeps the main thread
+     * responsive while a program writes large amounts of output; only the
+     * notification that the screen has changed is sent to the main thread.
+     * <p>
+     * This must be called before the emulator is initialized, and has no
+     * effect afterwards.  Subclasses which override
+     * {@link #processInput processInput} must be prepared for it to be
+     * called on the emulation thread.
+     *
+     * @param useEmulationThread Whether to use an emulation thread.
+     */
+    public void setUseEmulationThread(boolean useEmulationThread) {
+        mUseEmulationThread = useEmulationThread;
+    }
+
+    /**
+     * Set how much input from the process may be processed in one frame.
+     * Input is processed in slices paced by the display's frame rate, and
+     * the screen is updated once after each slice; a slice ends when either
+     * limit is reached, and the rest of the input is left for the next
+     * frame.
+     *
+     * @param maxBytes The most input, in bytes, to process in one frame.
+     * @param maxMillis The most time, in milliseconds, to spend processing
+     *                  input in one frame.
+     */
+    public void setFrameInputBudget(int maxBytes, int maxMillis) {
+        if (maxBytes <= 0 || maxMillis <= 0) {
+            throw new IllegalArgumentException("frame input budget must be positive");
+        }
+        mFrameInputBytes = maxBytes;
+        mFrameInputNanos = maxMillis * 1000000L;
+    }
+
+    /**
+     * Set how many lines which have scrolled off the top of the screen are
+     * kept in the transcript.  Memory for the lines is only allocated as the
+     * transcript fills, so a large limit costs nothing until it's used.
+     * <p>
+     * This may be changed while the session is running.  Raising the limit
+     * keeps everything in the transcript; lowering it discards the oldest
+     * lines which no longer fit.
+     *
+     * @param rows The number of lines to keep.
+     */
+    public void setTranscriptRows(int rows) {
+        if (rows < 0) {
+            throw new IllegalArgumentException("rows must not be negative");
+        }
+        mTranscriptRows = rows;
+        if (mTranscriptScreen == null) {
+            return;
+        }
+        synchronized (mEmulatorLock) {
+            mTranscriptScreen.setTranscriptRows(rows);
+        }
+        notifyUpdate();
+    }
+
+    /**
+     * Get how many lines which have scrolled off the top of the screen are
+     * kept in the transcript.
+     */
+    public int getTranscriptRows() {
+        return mTranscriptRows;
+    }
+
+    /**
+     * Keep the lines which no longer fit in the transcript in a file in the
+     * given directory, so that the session's whole history can be scrolled
+     * back to and exported.  The file is deleted when the session finishes.
+     * <p>
+     * This may be changed while the session is running.  Setting a different
+     * directory, or null, discards the lines kept so far.
+     *
+     * @param dir The directory to keep the file in, typically the
+     *            application's cache directory, or null to discard lines
+     *            which no longer fit.
+     */
+    public void setTranscriptOverflowDirectory(File dir) {
+        if (dir == null ? mTranscriptOverflowDir == null : dir.equals(mTranscriptOverflowDir)) {
+            return;
+        }
+        mTranscriptOverflowDir = dir;
+        if (mTranscriptScreen == null) {
+            return;
+        }
+        synchronized (mEmulatorLock) {
+            mTranscriptScreen.setOverflowDirectory(dir);
+        }
+        notifyUpdate();
+    }
+
+    /**
+     * Set the input rate above which the session fast-forwards through
+     * output.  When a program writes more than this for a sustained period
+     * (as <code>yes</code> does), input is still processed so that the
+     * emulator's state stays correct, but the screen is only redrawn
+     * occasionally, and only a limited amount of the output is kept in the
+     * transcript.
+     *
+     * @param bytesPerSecond The input rate, or 0 to never fast-forward.
+     * @see #getFastForwardedBytes
+     */
+    public void setFastForwardRate(int bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("rate must not be negative");
+        }
+        mFastForwardRate = bytesPerSecond;
+    }
+
+    /**
+     * Whether the session is currently fast-forwarding through output.
+     *
+     * @see #setFastForwardRate
+     */
+    public boolean isFastForwarding() {
+        return mFastForward;
+    }
+
+    /**
+     * Get the number of bytes of output processed while fast-forwarding,
+     * either currently or recently.  This drops back to zero a few seconds
+     * after fast-forwarding ends.
+     *
+     * @see #setFastForwardRate
+     */
+    public long getFastForwardedBytes() {
+        return mFastForwardedBytes;
+    }
+
+    /**
+     * Take a snapshot of the session's counters: bytes read and written,
+     * escape sequences seen, time spent processing input, and so on.  This
+     * is cheap enough to call periodically.
+     *
+     * @param metrics The {@link TerminalMetrics} to fill in.
+     */
+    public void getMetrics(TerminalMetrics metrics) {
+        synchronized (mEmulatorLock) {
+            metrics.bytesIn = mBytesIn;
+            if (mEmulator != null) {
+                mEmulator.getMetrics(metrics);
+            }
+        }
+        metrics.bytesOut = mBytesOut;
+    }
+
+    private void startEmulationThread() {
+        mEmulationThread = new HandlerThread("TermSession emulation");
+        mEmulationThread.start();
+        mInputHandler = new Handler(mEmulationThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (!mIsRunning) {
+                    return;
+                }
+                if (msg.what == NEW_INPUT) {
+                    scheduleInputDrain();
+                } else if (msg.what == EOF) {
+                    drainInput(Integer.MAX_VALUE, Long.MAX_VALUE);
+                    mMsgHandler.sendEmptyMessage(EOF);
+                }
+            }
+        };
+    }
+
     /**
      * Write data to the terminal output.  The written data will be consumed by
      * the emulation client as input.
@@ -393,6 +708,14 @@ TerminalEmulator getEmulator() {
         return mEmulator;
     }
 
+    /**
+     * Get the lock which must be held while reading the emulator's screen
+     * from outside the thread which processes input.
+     */
+    Object getEmulatorLock() {
+        return mEmulatorLock;
+    }
+
     /**
      * Set an {@link UpdateCallback} to be invoked when the terminal emulator's
      * screen is changed.
@@ -408,11 +731,42 @@ public void setUpdateCallback(UpdateCallback notify) {
      * #setUpdateCallback setUpdateCallback} that the screen has changed.
      */
     protected void notifyUpdate() {
+        if (mSynchronizedUpdate) {
+            /* Nothing to remember: the update is delivered by the call which
+               follows the input ending the synchronized update, or by the
+               timeout handler */
+            return;
+        }
         if (mNotify != null) {
             mNotify.onUpdate();
         }
     }
 
+    /**
+     * Start or end a synchronized update (DECSET/DECRST 2026).  While a
+     * synchronized update is in progress, {@link #notifyUpdate} calls are
+     * held back, so that the {@link UpdateCallback} sees the screen only
+     * once the application has finished drawing it.  If the update isn't
+     * ended within a short timeout, it's ended for the application.
+     * <p>
+     * The emulator calls this while processing input; the update held back
+     * is delivered by the {@link #notifyUpdate} which follows the input.
+     *
+     * @param synchronizedUpdate Whether a synchronized update is starting.
+     */
+    void setSynchronizedUpdate(boolean synchronizedUpdate) {
+        if (synchronizedUpdate == mSynchronizedUpdate) {
+            return;
+        }
+        mSynchronizedUpdate = synchronizedUpdate;
+        if (synchronizedUpdate) {
+            mMsgHandler.sendEmptyMessageDelayed(SYNCHRONIZED_UPDATE_TIMEOUT,
+                    SYNCHRONIZED_UPDATE_TIMEOUT_MS);
+        } else {
+            mMsgHandler.removeMessages(SYNCHRONIZED_UPDATE_TIMEOUT);
+        }
+    }
+
     /**
      * Get the terminal session's title (may be null).
      */
@@ -425,7 +779,12 @@ public String getTitle() {
      */
     public void setTitle(String title) {
         mTitle = title;
-        notifyTitleChanged();
+        if (mEmulationThread != null
+                && Thread.currentThread() == mEmulationThread) {
+            mMsgHandler.sendEmptyMessage(TITLE_CHANGED);
+        } else {
+            notifyTitleChanged();
+        }
     }
 
     /**
@@ -466,7 +825,9 @@ public void updateSize(int columns, int rows) {
         if (mEmulator == null) {
             initializeEmulator(columns, rows);
         } else {
-            mEmulator.updateSize(columns, rows);
+            synchronized (mEmulatorLock) {
+                mEmulator.updateSize(columns, rows);
+            }
         }
     }
 
@@ -477,25 +838,142 @@ public void updateSize(int columns, int rows) {
      *         scrollback buffer.
      */
     public String getTranscriptText() {
-        return mTranscriptScreen.getTranscriptText();
+        synchronized (mEmulatorLock) {
+            return mTranscriptScreen.getTranscriptText();
+        }
+    }
+
+    /**
+     * Arrange for pending input to be processed at the start of the next
+     * frame.  Called on the thread which processes input.
+     */
+    private void scheduleInputDrain() {
+        if (mFrameCallbackPosted) {
+            return;
+        }
+        if (mChoreographer == null) {
+            mChoreographer = Choreographer.getInstance();
+        }
+        mFrameCallbackPosted = true;
+        mChoreographer.postFrameCallback(mDrainInput);
     }
 
     /**
-     * Look for new input from the ptty, send it to the terminal emulator.
+     * Process pending input until it runs out or either limit is reached,
+     * then update the screen once.
      */
-    private void readFromProcess() {
+    private void drainInput(int maxBytes, long maxNanos) {
+        if (!mIsRunning) {
+            return;
+        }
+        long start = System.nanoTime();
+        int bytesProcessed = 0;
+        while (bytesProcessed < maxBytes && mByteQueue.getBytesAvailable() > 0) {
+            int bytesRead = readFromProcess(maxBytes - bytesProcessed);
+            if (bytesRead <= 0) {
+                break;
+            }
+            bytesProcessed += bytesRead;
+            if (System.nanoTime() - start >= maxNanos) {
+                break;
+            }
+        }
+
+        long now = System.nanoTime();
+        boolean wasFastForward = mFastForward;
+        updateFastForward(bytesProcessed, now);
+        boolean redraw;
+        if (mFastForward) {
+            redraw = now - mLastRedraw >= FAST_FORWARD_REDRAW_NANOS;
+        } else {
+            redraw = bytesProcessed > 0 || wasFastForward;
+        }
+        if (redraw) {
+            mLastRedraw = now;
+            screenChanged();
+        }
+
+        // Keep watching the input rate while fast-forwarding, even if the
+        // input stops
+        if (mIsRunning && (mFastForward || mByteQueue.getBytesAvailable() > 0)) {
+            scheduleInputDrain();
+        }
+    }
+
+    /**
+     * Start or stop fast-forwarding, depending on the input rate over the
+     * last measurement period.
+     */
+    private void updateFastForward(int bytesProcessed, long now) {
+        if (mFastForward) {
+            mFastForwardedBytes += bytesProcessed;
+        }
+        mRateWindowBytes += bytesProcessed;
+        long elapsed = now - mRateWindowStart;
+        if (elapsed < FAST_FORWARD_WINDOW_NANOS) {
+            return;
+        }
+        boolean runaway = mFastForwardRate > 0
+                && mRateWindowBytes * 1000000000.0 / elapsed >= mFastForwardRate;
+        mRateWindowStart = now;
+        mRateWindowBytes = 0;
+        if (runaway == mFastForward) {
+            return;
+        }
+
+        synchronized (mEmulatorLock) {
+            if (!mIsRunning) {
+                return;
+            }
+            mTranscriptScreen.setScrollbackLimit(runaway ? FAST_FORWARD_TRANSCRIPT_ROWS : -1);
+        }
+        if (runaway) {
+            mMsgHandler.removeMessages(FAST_FORWARD_DONE);
+            mFastForwardedBytes = 0;
+            mLastRedraw = now;
+        } else {
+            mMsgHandler.sendEmptyMessageDelayed(FAST_FORWARD_DONE, FAST_FORWARD_MARKER_MS);
+        }
+        mFastForward = runaway;
+    }
+
+    private void screenChanged() {
+        if (mEmulationThread != null) {
+            // Let the main thread know, unless it's already been told
+            if (!mMsgHandler.hasMessages(SCREEN_UPDATE)) {
+                mMsgHandler.sendEmptyMessage(SCREEN_UPDATE);
+            }
+        } else {
+            notifyUpdate();
+        }
+    }
+
+    /**
+     * Process at most maxBytes of pending input.
+     *
+     * @return The number of bytes processed, or -1 if the session has
+     *         stopped.
+     */
+    private int readFromProcess(int maxBytes) {
         int bytesAvailable = mByteQueue.getBytesAvailable();
-        int bytesToRead = Math.min(bytesAvailable, mReceiveBuffer.length);
+        int bytesToRead = Math.min(Math.min(bytesAvailable, maxBytes),
+                mReceiveBuffer.length);
         int bytesRead = 0;
         try {
             bytesRead = mByteQueue.read(mReceiveBuffer, 0, bytesToRead);
         } catch (InterruptedException e) {
-            return;
+            return -1;
         }
 
         // Give subclasses a chance to process the read data
-        processInput(mReceiveBuffer, 0, bytesRead);
-        notifyUpdate();
+        synchronized (mEmulatorLock) {
+            if (!mIsRunning) {
+                return -1;
+            }
+            mBytesIn += bytesRead;
+            processInput(mReceiveBuffer, 0, bytesRead);
+        }
+        return bytesRead;
     }
 
     /**
@@ -525,7 +1003,9 @@ protected void processInput(byte[] data, int offset, int count) {
      * @param count The length of the data to be written.
      */
     protected final void appendToEmulator(byte[] data, int offset, int count) {
-        mEmulator.append(data, offset, count);
+        synchronized (mEmulatorLock) {
+            mEmulator.append(data, offset, count);
+        }
     }
 
     /**
@@ -542,7 +1022,9 @@ public void setColorScheme(ColorScheme scheme) {
         if (mEmulator == null) {
             return;
         }
-        mEmulator.setColorScheme(scheme);
+        synchronized (mEmulatorLock) {
+            mEmulator.setColorScheme(scheme);
+        }
     }
 
     /**
@@ -561,7 +1043,9 @@ public void setDefaultUTF8Mode(boolean utf8ByDefault) {
         if (mEmulator == null) {
             return;
         }
-        mEmulator.setDefaultUTF8Mode(utf8ByDefault);
+        synchronized (mEmulatorLock) {
+            mEmulator.setDefaultUTF8Mode(utf8ByDefault);
+        }
     }
 
     /**
@@ -585,7 +1069,14 @@ public boolean getUTF8Mode() {
      */
     public void setUTF8ModeUpdateCallback(UpdateCallback utf8ModeNotify) {
         if (mEmulator != null) {
-            mEmulator.setUTF8ModeUpdateCallback(utf8ModeNotify);
+            mUTF8ModeNotify = utf8ModeNotify;
+            synchronized (mEmulatorLock) {
+                if (mEmulationThread != null && utf8ModeNotify != null) {
+                    mEmulator.setUTF8ModeUpdateCallback(mUTF8ModeChanged);
+                } else {
+                    mEmulator.setUTF8ModeUpdateCallback(utf8ModeNotify);
+                }
+            }
         }
     }
 
@@ -593,7 +1084,9 @@ public void setUTF8ModeUpdateCallback(UpdateCallback utf8ModeNotify) {
      * Reset the terminal emulator's state.
      */
     public void reset() {
-        mEmulator.reset();
+        synchronized (mEmulatorLock) {
+            mEmulator.reset();
+        }
         notifyUpdate();
     }
 
@@ -613,16 +1106,22 @@ public void setFinishCallback(FinishCallback callback) {
      * <code>OutputStream</code>.
      */
     public void finish() {
-        mIsRunning = false;
-        mEmulator.finish();
-        if (mTranscriptScreen != null) {
-            mTranscriptScreen.finish();
+        synchronized (mEmulatorLock) {
+            mIsRunning = false;
+            mEmulator.finish();
+            if (mTranscriptScreen != null) {
+                mTranscriptScreen.finish();
+            }
         }
 
-        // Stop the reader and writer threads, and close the I/O streams
+        // Stop the reader, writer and emulation threads, and close the I/O
+        // streams
         if (mWriterHandler != null) {
             mWriterHandler.sendEmptyMessage(FINISH);
         }
+        if (mEmulationThread != null) {
+            mEmulationThread.quit();
+        }
         try {
             mTermIn.close();
             mTermOut.close();
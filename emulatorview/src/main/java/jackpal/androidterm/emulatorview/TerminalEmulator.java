@@ -17,11 +17,6 @@
 package jackpal.androidterm.emulatorview;
 
 import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CodingErrorAction;
 import java.util.Locale;
 
 import android.util.Log;
@@ -101,69 +96,154 @@ public void setKeyListener(TermKeyListener l) {
      */
     private static final int MAX_OSC_STRING_LENGTH = 512;
 
-    // Escape processing states:
+    /**
+     * Keeps track of which arguments of the current control sequence are
+     * sub-parameters (separated from the preceding argument by a colon
+     * rather than a semicolon).  Bit i is set if mArgs[i] is a sub-parameter.
+     */
+    private int mArgSubParams;
+
+    /**
+     * Largest value we accept for a numeric argument.  Bigger values are
+     * clamped, which keeps long strings of digits from overflowing.
+     */
+    private static final int MAX_ESCAPE_PARAMETER_VALUE = 0xffff;
+
+    /**
+     * The intermediate and private marker characters collected for the
+     * current escape or control sequence, packed one per byte with the first
+     * character in the most significant position.  Set to -1 if there were
+     * too many to keep track of.
+     */
+    private int mCollected;
+
+    // Parser states. These follow Paul Williams' parser for DEC
+    // ANSI-compatible terminals (http://vt100.net/emu/dec_ansi_parser),
+    // except that colons in control sequences separate sub-parameters.
+
+    /**
+     * Parser state: Not currently in an escape sequence.
+     */
+    private static final int STATE_GROUND = 0;
+
+    /**
+     * Parser state: Have seen an ESC character
+     */
+    private static final int STATE_ESCAPE = 1;
+
+    /**
+     * Parser state: Have seen ESC and one or more intermediate characters
+     * (such as the # in ESC # 8 or the ( in ESC ( 0)
+     */
+    private static final int STATE_ESCAPE_INTERMEDIATE = 2;
+
+    /**
+     * Parser state: ESC [ (AKA CSI - Control Sequence Introducer)
+     */
+    private static final int STATE_CSI_ENTRY = 3;
 
     /**
-     * Escape processing state: Not currently in an escape sequence.
+     * Parser state: CSI followed by parameter characters
      */
-    private static final int ESC_NONE = 0;
+    private static final int STATE_CSI_PARAM = 4;
 
     /**
-     * Escape processing state: Have seen an ESC character
+     * Parser state: CSI followed by intermediate characters
      */
-    private static final int ESC = 1;
+    private static final int STATE_CSI_INTERMEDIATE = 5;
 
     /**
-     * Escape processing state: Have seen ESC POUND
+     * Parser state: malformed control sequence, ignore it up to and
+     * including its final character
      */
-    private static final int ESC_POUND = 2;
+    private static final int STATE_CSI_IGNORE = 6;
 
     /**
-     * Escape processing state: Have seen ESC and a character-set-select char
+     * Parser state: ESC P (AKA DCS - Device Control String)
      */
-    private static final int ESC_SELECT_LEFT_PAREN = 3;
+    private static final int STATE_DCS_ENTRY = 7;
 
     /**
-     * Escape processing state: Have seen ESC and a character-set-select char
+     * Parser state: DCS followed by parameter characters
      */
-    private static final int ESC_SELECT_RIGHT_PAREN = 4;
+    private static final int STATE_DCS_PARAM = 8;
 
     /**
-     * Escape processing state: ESC [
+     * Parser state: DCS followed by intermediate characters
      */
-    private static final int ESC_LEFT_SQUARE_BRACKET = 5;
+    private static final int STATE_DCS_INTERMEDIATE = 9;
 
     /**
-     * Escape processing state: ESC [ ?
+     * Parser state: the data string of a DCS.  This and the following states
+     * consume string data up to the String Terminator (ESC \) and are
+     * exempt from UTF-8 decoding.
      */
-    private static final int ESC_LEFT_SQUARE_BRACKET_QUESTION_MARK = 6;
+    private static final int STATE_DCS_PASSTHROUGH = 10;
 
     /**
-     * Escape processing state: ESC %
+     * Parser state: malformed DCS, ignore it up to the String Terminator
      */
-    private static final int ESC_PERCENT = 7;
+    private static final int STATE_DCS_IGNORE = 11;
+
+    /**
+     * Parser state: ESC ] (AKA OSC - Operating System Controls)
+     */
+    private static final int STATE_OSC_STRING = 12;
+
+    /**
+     * Parser state: ESC X, ESC ^ or ESC _ (SOS, PM or APC), which we ignore
+     * up to the String Terminator
+     */
+    private static final int STATE_SOS_PM_APC_STRING = 13;
+
+    private static final int STATE_COUNT = 14;
 
     /**
-     * Escape processing state: ESC ] (AKA OSC - Operating System Controls)
+     * Marks a transition table entry which doesn't change the parser state.
      */
-    private static final int ESC_RIGHT_SQUARE_BRACKET = 8;
+    private static final int STATE_UNCHANGED = 15;
+
+    // Parser actions:
+
+    private static final int ACTION_IGNORE = 0;
+    private static final int ACTION_PRINT = 1;
+    private static final int ACTION_EXECUTE = 2;
+    private static final int ACTION_CLEAR = 3;
+    private static final int ACTION_COLLECT = 4;
+    private static final int ACTION_PARAM = 5;
+    private static final int ACTION_NEXT_PARAM = 6;
+    private static final int ACTION_NEXT_SUB_PARAM = 7;
+    private static final int ACTION_ESC_DISPATCH = 8;
+    private static final int ACTION_CSI_DISPATCH = 9;
+    private static final int ACTION_HOOK = 10;
+    private static final int ACTION_PUT = 11;
+    private static final int ACTION_UNHOOK = 12;
+    private static final int ACTION_OSC_START = 13;
+    private static final int ACTION_OSC_PUT = 14;
+    private static final int ACTION_OSC_END = 15;
+    private static final int ACTION_CANCEL = 16;
 
     /**
-     * Escape processing state: ESC ] (AKA OSC - Operating System Controls)
+     * The parser's transition table.  The entry for a state and input byte
+     * is TRANSITIONS[(state << 8) | byte], and holds the action to perform
+     * in the upper bits and the next state (or STATE_UNCHANGED) in the low
+     * four bits.
      */
-    private static final int ESC_RIGHT_SQUARE_BRACKET_ESC = 9;
+    private static final short[] TRANSITIONS = new short[STATE_COUNT << 8];
 
     /**
-     * True if the current escape sequence should continue, false if the current
-     * escape sequence should be terminated. Used when parsing a single
-     * character.
+     * The action to perform on entering each parser state.
      */
-    private boolean mContinueSequence;
+    private static final byte[] ENTRY_ACTIONS = new byte[STATE_COUNT];
+
+    static {
+        buildTransitions();
+    }
 
     /**
-     * The current state of the escape sequence state machine.
+     * The current state of the escape sequence parser.
      */
-    private int mEscapeState;
+    private int mParserState;
 
     /**
      * Saved state of the cursor row, Used to implement the save/restore cursor
@@ -382,6 +462,22 @@ public void setKeyListener(TermKeyListener l) {
      */
     private int mScrollCounter = 0;
 
+    /*
+     * Counters reported by getMetrics().  Unlike mScrollCounter, these are
+     * never cleared.
+     */
+    private long mCodePointCount;
+    private final long[] mEscapeSequenceCounts = new long[128];
+    private final long[] mControlSequenceCounts = new long[128];
+    private long mOscCount;
+    private long mUnknownSequenceCount;
+    private long mUnimplementedSequenceCount;
+    private long mScrollCount;
+    private long mScrolledLineCount;
+    private long mResizeCount;
+    private long mReflowCount;
+    private long mAppendNanos;
+
     /**
      * UTF-8 support
      */
@@ -390,11 +486,66 @@ public void setKeyListener(TermKeyListener l) {
     private boolean mUTF8Mode = false;
     private boolean mUTF8EscapeUsed = false;
     private int mUTF8ToFollow = 0;
-    private ByteBuffer mUTF8ByteBuffer;
-    private CharBuffer mInputCharBuffer;
-    private CharsetDecoder mUTF8Decoder;
     private UpdateCallback mUTF8ModeNotify;
 
+    /**
+     * The code point decoded so far from the current UTF-8 sequence, and the
+     * smallest code point which may legally be encoded by a sequence of its
+     * length (anything smaller is an overlong encoding).
+     */
+    private int mUTF8CodePoint;
+    private int mUTF8MinCodePoint;
+
+    /**
+     * For each byte value, the number of continuation bytes which follow it
+     * in a UTF-8 sequence: 0 for ASCII, 1-3 for sequence start bytes, and -1
+     * for bytes which cannot start a sequence (continuation bytes and
+     * 0xf8-0xff).  Sequence start bytes are classified by their bit pattern
+     * alone; sequences which turn out to be overlong or out of range are
+     * replaced once they are complete.
+     */
+    private static final byte[] UTF8_TO_FOLLOW = new byte[256];
+
+    /**
+     * Mask for the payload bits of a sequence start byte, indexed by the
+     * number of continuation bytes to follow.
+     */
+    private static final int[] UTF8_LEAD_MASK = { 0x7f, 0x1f, 0x0f, 0x07 };
+
+    /**
+     * Smallest code point which may be encoded by a sequence, indexed by the
+     * number of continuation bytes in the sequence.
+     */
+    private static final int[] UTF8_MIN_CODE_POINT = { 0, 0x80, 0x800, 0x10000 };
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            int toFollow;
+            if ((i & 0x80) == 0) {
+                toFollow = 0;
+            } else if ((i & 0xe0) == 0xc0) { // 0b110 -- two-byte sequence
+                toFollow = 1;
+            } else if ((i & 0xf0) == 0xe0) { // 0b1110 -- three-byte sequence
+                toFollow = 2;
+            } else if ((i & 0xf8) == 0xf0) { // 0b11110 -- four-byte sequence
+                toFollow = 3;
+            } else {
+                toFollow = -1;
+            }
+            UTF8_TO_FOLLOW[i] = (byte) toFollow;
+        }
+    }
+
+    /**
+     * Scratch buffer holding a run of plain text on its way to the screen.
+     */
+    private final char[] mRunBuffer = new char[RUN_BUFFER_SIZE];
+
+    private static final int RUN_BUFFER_SIZE = 4096;
+
+    private int mRunLength;
+    private boolean mRunIsBasic;
+
     /** This is not accurate, but it makes the terminal more useful on
      * small screens.
      */
@@ -414,18 +565,14 @@ public TerminalEmulator(TermSession session, TranscriptScreen screen, int column
         mMainBuffer = screen;
         mScreen = mMainBuffer;
         mAltBuffer = new TranscriptScreen(columns, rows, rows, scheme);
+        // The current colors carry over when switching screens
+        mAltBuffer.setTrueColorTable(screen.getTrueColorTable());
         mRows = rows;
         mColumns = columns;
         mTabStop = new boolean[mColumns];
 
         setColorScheme(scheme);
 
-        mUTF8ByteBuffer = ByteBuffer.allocate(4);
-        mInputCharBuffer = CharBuffer.allocate(2);
-        mUTF8Decoder = Charset.forName("UTF-8").newDecoder();
-        mUTF8Decoder.onMalformedInput(CodingErrorAction.REPLACE);
-        mUTF8Decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
-
         reset();
     }
 
@@ -444,6 +591,11 @@ public void updateSize(int columns, int rows) {
         if (rows <= 0) {
             throw new IllegalArgumentException("rows:" + rows);
         }
+        mResizeCount++;
+        resizeScreens(columns, rows);
+    }
+
+    private void resizeScreens(int columns, int rows) {
 
         TranscriptScreen screen = mScreen;
         TranscriptScreen altScreen;
@@ -453,39 +605,18 @@ public void updateSize(int columns, int rows) {
             altScreen = mAltBuffer;
         }
 
-        // Try to resize the screen without getting the transcript
+        // Try to resize the screen without rewrapping the transcript
         int[] cursor = { mCursorCol, mCursorRow };
         boolean fastResize = screen.fastResize(columns, rows, cursor);
-
-        GrowableIntArray cursorColor = null;
-        String charAtCursor = null;
-        GrowableIntArray colors = null;
-        String transcriptText = null;
         if (!fastResize) {
-            /* Save the character at the cursor (if one exists) and store an
-             * ASCII ESC character at the cursor's location
-             * This is an epic hack that lets us restore the cursor later...
-             */
-            cursorColor = new GrowableIntArray(1);
-            charAtCursor = screen.getSelectedText(cursorColor, mCursorCol, mCursorRow, mCursorCol, mCursorRow);
-            screen.set(mCursorCol, mCursorRow, 27, 0);
-
-            colors = new GrowableIntArray(1024);
-            transcriptText = screen.getTranscriptText(colors);
-            screen.resize(columns, rows, getStyle());
-        }
-
-        boolean altFastResize = true;
-        GrowableIntArray altColors = null;
-        String altTranscriptText = null;
-        if (altScreen != null) {
-            altFastResize = altScreen.fastResize(columns, rows, null);
-
-            if (!altFastResize) {
-                altColors = new GrowableIntArray(1024);
-                altTranscriptText = altScreen.getTranscriptText(altColors);
-                altScreen.resize(columns, rows, getStyle());
-            }
+            mReflowCount++;
+            screen.reflow(columns, rows, cursor, getStyle());
+            mAboutToAutoWrap = false;
+        }
+
+        if (altScreen != null && !altScreen.fastResize(columns, rows, null)) {
+            mReflowCount++;
+            altScreen.reflow(columns, rows, null, getStyle());
         }
 
         if (mRows != rows) {
@@ -502,109 +633,13 @@ public void updateSize(int columns, int rows) {
             System.arraycopy(oldTabStop, 0, mTabStop, 0, toTransfer);
         }
 
-        if (!altFastResize) {
-            boolean wasAboutToAutoWrap = mAboutToAutoWrap;
-
-            // Restore the contents of the inactive screen's buffer
-            mScreen = altScreen;
-            mCursorRow = 0;
+        if (cursor[0] >= 0 && cursor[1] >= 0) {
+            mCursorCol = cursor[0];
+            mCursorRow = cursor[1];
+        } else {
+            // Cursor scrolled off screen, reset the cursor to top left
             mCursorCol = 0;
-            mAboutToAutoWrap = false;
-
-            int end = altTranscriptText.length()-1;
-            /* Unlike for the main transcript below, don't trim off trailing
-             * newlines -- the alternate transcript lacks a cursor marking, so
-             * we might introduce an unwanted vertical shift in the screen
-             * contents this way */
-            char c, cLow;
-            int colorOffset = 0;
-            for (int i = 0; i <= end; i++) {
-                c = altTranscriptText.charAt(i);
-                int style = altColors.at(i-colorOffset);
-                if (Character.isHighSurrogate(c)) {
-                    cLow = altTranscriptText.charAt(++i);
-                    emit(Character.toCodePoint(c, cLow), style);
-                    ++colorOffset;
-                } else if (c == '\n') {
-                    setCursorCol(0);
-                    doLinefeed();
-                } else {
-                    emit(c, style);
-                }
-            }
-
-            mScreen = screen;
-            mAboutToAutoWrap = wasAboutToAutoWrap;
-        }
-
-        if (fastResize) {
-            // Only need to make sure the cursor is in the right spot
-            if (cursor[0] >= 0 && cursor[1] >= 0) {
-                mCursorCol = cursor[0];
-                mCursorRow = cursor[1];
-            } else {
-                // Cursor scrolled off screen, reset the cursor to top left
-                mCursorCol = 0;
-                mCursorRow = 0;
-            }
-
-            return;
-        }
-
-        mCursorRow = 0;
-        mCursorCol = 0;
-        mAboutToAutoWrap = false;
-
-        int newCursorRow = -1;
-        int newCursorCol = -1;
-        int newCursorTranscriptPos = -1;
-        int end = transcriptText.length()-1;
-        while ((end >= 0) && transcriptText.charAt(end) == '\n') {
-            end--;
-        }
-        char c, cLow;
-        int colorOffset = 0;
-        for(int i = 0; i <= end; i++) {
-            c = transcriptText.charAt(i);
-            int style = colors.at(i-colorOffset);
-            if (Character.isHighSurrogate(c)) {
-                cLow = transcriptText.charAt(++i);
-                emit(Character.toCodePoint(c, cLow), style);
-                ++colorOffset;
-            } else if (c == '\n') {
-                setCursorCol(0);
-                doLinefeed();
-            } else if (c == 27) {
-                /* We marked the cursor location with ESC earlier, so this
-                   is the place to restore the cursor to */
-                newCursorRow = mCursorRow;
-                newCursorCol = mCursorCol;
-                newCursorTranscriptPos = screen.getActiveRows();
-                if (charAtCursor != null && charAtCursor.length() > 0) {
-                    // Emit the real character that was in this spot
-                    int encodedCursorColor = cursorColor.at(0);
-                    emit(charAtCursor.toCharArray(), 0, charAtCursor.length(), encodedCursorColor);
-                }
-            } else {
-                emit(c, style);
-            }
-        }
-
-        // If we marked a cursor location, move the cursor there now
-        if (newCursorRow != -1 && newCursorCol != -1) {
-            mCursorRow = newCursorRow;
-            mCursorCol = newCursorCol;
-
-            /* Adjust for any scrolling between the time we marked the cursor
-               location and now */
-            int scrollCount = screen.getActiveRows() - newCursorTranscriptPos;
-            if (scrollCount > 0 && scrollCount <= newCursorRow) {
-                mCursorRow -= scrollCount;
-            } else if (scrollCount > newCursorRow) {
-                // Cursor scrolled off screen -- reset to top left corner
-                mCursorRow = 0;
-                mCursorCol = 0;
-            }
+            mCursorRow = 0;
         }
     }
 
@@ -664,8 +699,59 @@ public void append(byte[] buffer, int base, int length) {
         if (EmulatorDebug.LOG_CHARACTERS_FLAG) {
             Log.d(EmulatorDebug.LOG_TAG, "In: '" + EmulatorDebug.bytesToString(buffer, base, length) + "'");
         }
-        for (int i = 0; i < length; i++) {
-            byte b = buffer[base + i];
+        long startTime = System.nanoTime();
+        int end = base + length;
+        int i = base;
+        while (i < end) {
+            if (canEmitRun()) {
+                int linesEnd = i;
+                try {
+                    linesEnd = doShortLines(buffer, i, end);
+                } catch (Exception e) {
+                    Log.e(EmulatorDebug.LOG_TAG, "Exception while processing lines at "
+                            + Integer.toString(mProcessedCharCount), e);
+                }
+                if (linesEnd > i) {
+                    mProcessedCharCount += linesEnd - i;
+                    i = linesEnd;
+                    continue;
+                }
+
+                int runEnd = collectRun(buffer, i, end);
+                if (runEnd > i) {
+                    int runLength = runEnd - i;
+                    try {
+                        if (mRunIsBasic) {
+                            emitRun(mRunBuffer, 0, mRunLength, getStyle());
+                        } else {
+                            emit(mRunBuffer, 0, mRunLength, getStyle());
+                        }
+                    } catch (Exception e) {
+                        Log.e(EmulatorDebug.LOG_TAG, "Exception while processing characters "
+                                + Integer.toString(mProcessedCharCount) + " to "
+                                + Integer.toString(mProcessedCharCount + runLength), e);
+                    }
+                    mProcessedCharCount += runLength;
+                    i = runEnd;
+                    continue;
+                }
+            }
+
+            if (mParserState == STATE_GROUND && mUTF8ToFollow == 0
+                    && buffer[i] >= 10 && buffer[i] <= 13) {
+                int runEnd = i + 1;
+                try {
+                    runEnd = doLinefeeds(buffer, i, end);
+                } catch (Exception e) {
+                    Log.e(EmulatorDebug.LOG_TAG, "Exception while processing linefeeds at "
+                            + Integer.toString(mProcessedCharCount), e);
+                }
+                mProcessedCharCount += runEnd - i;
+                i = runEnd;
+                continue;
+            }
+
+            byte b = buffer[i++];
             try {
                 process(b);
                 mProcessedCharCount++;
@@ -675,6 +761,94 @@ public void append(byte[] buffer, int base, int length) {
                         + Integer.toString(b), e);
             }
         }
+        mAppendNanos += System.nanoTime() - startTime;
+    }
+
+    /**
+     * Whether the bytes which follow can be decoded and stored as a run of
+     * text instead of going through process() one at a time.  This is only
+     * the case when we're not in the middle of an escape or UTF-8 sequence
+     * and no character set translation is in effect.
+     */
+    private boolean canEmitRun() {
+        return mParserState == STATE_GROUND && mUTF8ToFollow == 0
+                && !mUseAlternateCharSet;
+    }
+
+    /**
+     * Decode the plain text starting at buffer[start] into mRunBuffer.
+     *
+     * The run consists of printable ASCII characters and, in UTF-8 mode,
+     * complete and well-formed UTF-8 sequences which don't decode to C1
+     * control characters; it ends at the first byte which needs to go
+     * through process().  A run holds either only regular-width BMP
+     * characters, which can be stored in bulk with emitRun(), or only other
+     * characters; mRunIsBasic says which.  The number of chars stored in
+     * mRunBuffer is left in mRunLength.
+     *
+     * @return the index of the first byte which is not part of the run.
+     */
+    private int collectRun(byte[] buffer, int start, int end) {
+        char[] run = mRunBuffer;
+        int runLength = 0;
+        int runCapacity = run.length - 1;
+        boolean utf8 = mUTF8Mode;
+        boolean first = true;
+        boolean runIsBasic = true;
+        int i = start;
+        while (i < end && runLength < runCapacity) {
+            int c = buffer[i] & 0xff;
+            int codePoint;
+            int sequenceLength;
+            boolean basic;
+            if (c >= 32 && c < 127) {
+                codePoint = c;
+                sequenceLength = 1;
+                basic = true;
+            } else if (utf8 && c >= 0x80) {
+                int toFollow = UTF8_TO_FOLLOW[c];
+                if (toFollow <= 0 || i + toFollow >= end) {
+                    // Invalid or incomplete sequence -- let process() have it
+                    break;
+                }
+                codePoint = c & UTF8_LEAD_MASK[toFollow];
+                int j;
+                for (j = 1; j <= toFollow; ++j) {
+                    int next = buffer[i + j] & 0xff;
+                    if ((next & 0xc0) != 0x80) {
+                        break;
+                    }
+                    codePoint = (codePoint << 6) | (next & 0x3f);
+                }
+                if (j <= toFollow
+                        || !isValidUTF8CodePoint(codePoint, UTF8_MIN_CODE_POINT[toFollow])
+                        || codePoint <= 0x9f) {
+                    break;
+                }
+                sequenceLength = toFollow + 1;
+                basic = codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT
+                        && UnicodeTranscript.charWidth(codePoint) == 1;
+            } else {
+                break;
+            }
+
+            if (first) {
+                runIsBasic = basic;
+                first = false;
+            } else if (basic != runIsBasic) {
+                break;
+            }
+
+            if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                run[runLength++] = (char) codePoint;
+            } else {
+                runLength += Character.toChars(codePoint, run, runLength);
+            }
+            i += sequenceLength;
+        }
+        mRunLength = runLength;
+        mRunIsBasic = runIsBasic;
+        return i;
     }
 
     private void process(byte b) {
@@ -682,13 +856,17 @@ private void process(byte b) {
     }
 
     private void process(byte b, boolean doUTF8) {
-        // Let the UTF-8 decoder try to handle it if we're in UTF-8 mode
-        if (doUTF8 && mUTF8Mode && handleUTF8Sequence(b)) {
+        boolean utf8 = doUTF8 && mUTF8Mode;
+
+        // Let the UTF-8 decoder try to handle it if we're in UTF-8 mode.
+        // String data (OSC titles and the like) is kept as raw bytes.
+        if (utf8 && mParserState < STATE_DCS_PASSTHROUGH
+                && handleUTF8Sequence(b)) {
             return;
         }
 
         // Handle C1 control characters
-        if ((b & 0x80) == 0x80 && (b & 0x7f) <= 0x1f) {
+        if (!utf8 && (b & 0x80) == 0x80 && (b & 0x7f) <= 0x1f) {
             /* ESC ((code & 0x7f) + 0x40) is the two-byte escape sequence
                corresponding to a particular C1 code */
             process((byte) 27, false);
@@ -696,19 +874,105 @@ private void process(byte b, boolean doUTF8) {
             return;
         }
 
-        switch (b) {
-        case 0: // NUL
-            // Do nothing
+        int transition = TRANSITIONS[(mParserState << 8) | (b & 0xff)];
+        doAction(transition >> 4, b);
+        int nextState = transition & 0xf;
+        if (nextState != STATE_UNCHANGED) {
+            mParserState = nextState;
+            doAction(ENTRY_ACTIONS[nextState], b);
+        }
+    }
+
+    private void doAction(int action, byte b) {
+        switch (action) {
+        case ACTION_IGNORE:
+            break;
+
+        case ACTION_PRINT:
+            emit(b);
+            break;
+
+        case ACTION_EXECUTE:
+            execute(b);
             break;
 
-        case 7: // BEL
-            /* If in an OSC sequence, BEL may terminate a string; otherwise do
-             * nothing */
-            if (mEscapeState == ESC_RIGHT_SQUARE_BRACKET) {
-                doEscRightSquareBracket(b);
+        case ACTION_CLEAR:
+            clearSequence();
+            break;
+
+        case ACTION_COLLECT:
+            collect(b);
+            break;
+
+        case ACTION_PARAM:
+            if (mArgIndex < mArgs.length) {
+                int oldValue = mArgs[mArgIndex];
+                int thisDigit = b - '0';
+                int value;
+                if (oldValue >= 0) {
+                    value = Math.min(oldValue * 10 + thisDigit,
+                            MAX_ESCAPE_PARAMETER_VALUE);
+                } else {
+                    value = thisDigit;
+                }
+                mArgs[mArgIndex] = value;
+            }
+            break;
+
+        case ACTION_NEXT_PARAM:
+            if (mArgIndex < mArgs.length) {
+                mArgIndex++;
+            }
+            break;
+
+        case ACTION_NEXT_SUB_PARAM:
+            if (mArgIndex < mArgs.length) {
+                mArgIndex++;
+                mArgSubParams |= 1 << mArgIndex;
             }
             break;
 
+        case ACTION_ESC_DISPATCH:
+            escDispatch(b);
+            break;
+
+        case ACTION_CSI_DISPATCH:
+            csiDispatch(b);
+            break;
+
+        case ACTION_HOOK: // No device control strings are implemented
+            unimplementedSequence(b);
+            break;
+
+        case ACTION_PUT:
+        case ACTION_UNHOOK:
+            break;
+
+        case ACTION_OSC_START:
+            startCollectingOSCArgs();
+            break;
+
+        case ACTION_OSC_PUT:
+            collectOSCArgs(b);
+            break;
+
+        case ACTION_OSC_END:
+            mOscCount++;
+            doOSC();
+            break;
+
+        case ACTION_CANCEL:
+            // Abort the sequence and show an error character in its place
+            emit((byte) 127);
+            break;
+        }
+    }
+
+    /**
+     * Execute a C0 control character.
+     */
+    private void execute(byte b) {
+        switch (b) {
         case 8: // BS
             setCursorCol(Math.max(0, mCursorCol - 1));
             break;
@@ -736,143 +1000,234 @@ private void process(byte b, boolean doUTF8) {
             setAltCharSet(false);
             break;
 
-
-        case 24: // CAN
-        case 26: // SUB
-            if (mEscapeState != ESC_NONE) {
-                mEscapeState = ESC_NONE;
-                emit((byte) 127);
-            }
-            break;
-
-        case 27: // ESC
-            // Starts an escape sequence unless we're parsing a string
-            if (mEscapeState != ESC_RIGHT_SQUARE_BRACKET) {
-                startEscapeSequence(ESC);
-            } else {
-                doEscRightSquareBracket(b);
-            }
+        default: // NUL, BEL and the rest do nothing
             break;
+        }
+    }
 
-        default:
-            mContinueSequence = false;
-            switch (mEscapeState) {
-            case ESC_NONE:
-                if (b >= 32) {
-                    emit(b);
-                }
-                break;
+    private void clearSequence() {
+        mArgIndex = 0;
+        mArgSubParams = 0;
+        mCollected = 0;
+        for (int j = 0; j < MAX_ESCAPE_PARAMETERS; j++) {
+            mArgs[j] = -1;
+        }
+    }
 
-            case ESC:
-                doEsc(b);
-                break;
+    private void collect(byte b) {
+        if (mCollected >= 0 && mCollected < 0x1000000) {
+            mCollected = (mCollected << 8) | b;
+        } else {
+            mCollected = -1;
+        }
+    }
 
-            case ESC_POUND:
-                doEscPound(b);
-                break;
+    private void escDispatch(byte b) {
+        mEscapeSequenceCounts[b & 0x7f]++;
+        switch (mCollected) {
+        case 0:
+            doEsc(b);
+            break;
 
-            case ESC_SELECT_LEFT_PAREN:
-                doEscSelectLeftParen(b);
-                break;
+        case '#':
+            doEscPound(b);
+            break;
 
-            case ESC_SELECT_RIGHT_PAREN:
-                doEscSelectRightParen(b);
-                break;
+        case '(':
+            doEscSelectLeftParen(b);
+            break;
 
-            case ESC_LEFT_SQUARE_BRACKET:
-                doEscLeftSquareBracket(b); // CSI
-                break;
+        case ')':
+            doEscSelectRightParen(b);
+            break;
 
-            case ESC_LEFT_SQUARE_BRACKET_QUESTION_MARK:
-                doEscLSBQuest(b); // CSI ?
-                break;
+        case '%':
+            doEscPercent(b);
+            break;
 
-            case ESC_PERCENT:
-                doEscPercent(b);
-                break;
+        default:
+            unknownSequence(b);
+            break;
+        }
+    }
 
-            case ESC_RIGHT_SQUARE_BRACKET:
-                doEscRightSquareBracket(b);
-                break;
+    private void csiDispatch(byte b) {
+        mControlSequenceCounts[b & 0x7f]++;
+        if (mArgIndex >= mArgs.length) {
+            mArgIndex = mArgs.length - 1;
+        }
+        switch (mCollected) {
+        case 0:
+            doEscLeftSquareBracket(b); // CSI
+            break;
 
-            case ESC_RIGHT_SQUARE_BRACKET_ESC:
-                doEscRightSquareBracketEsc(b);
-                break;
+        case '?':
+            doEscLSBQuest(b); // CSI ?
+            break;
 
-            default:
-                unknownSequence(b);
-                break;
-            }
-            if (!mContinueSequence) {
-                mEscapeState = ESC_NONE;
-            }
+        default:
+            unknownSequence(b);
             break;
         }
     }
 
-    private boolean handleUTF8Sequence(byte b) {
-        if (mUTF8ToFollow == 0 && (b & 0x80) == 0) {
-            // ASCII character -- we don't need to handle this
-            return false;
+    /**
+     * Fill in the parser transition tables.
+     */
+    private static void buildTransitions() {
+        for (int state = 0; state < STATE_COUNT; state++) {
+            // By default, ignore the character and stay in the same state
+            addTransitions(state, 0x00, 0xff, ACTION_IGNORE, STATE_UNCHANGED);
+
+            // C0 controls are executed in the escape and control sequence
+            // states and ignored inside strings
+            int c0Action = state < STATE_DCS_ENTRY ? ACTION_EXECUTE
+                    : state == STATE_DCS_PASSTHROUGH ? ACTION_PUT : ACTION_IGNORE;
+            addTransitions(state, 0x00, 0x17, c0Action, STATE_UNCHANGED);
+            addTransitions(state, 0x19, 0x19, c0Action, STATE_UNCHANGED);
+            addTransitions(state, 0x1c, 0x1f, c0Action, STATE_UNCHANGED);
+
+            // "Anywhere" transitions
+            addTransitions(state, 0x18, 0x18, state == STATE_GROUND
+                    ? ACTION_EXECUTE : ACTION_CANCEL, STATE_GROUND);
+            addTransitions(state, 0x1a, 0x1a, state == STATE_GROUND
+                    ? ACTION_EXECUTE : ACTION_CANCEL, STATE_GROUND);
+            int escAction = state == STATE_OSC_STRING ? ACTION_OSC_END
+                    : state == STATE_DCS_PASSTHROUGH ? ACTION_UNHOOK : ACTION_IGNORE;
+            addTransitions(state, 0x1b, 0x1b, escAction, STATE_ESCAPE);
+        }
+
+        addTransitions(STATE_GROUND, 0x20, 0x7f, ACTION_PRINT, STATE_UNCHANGED);
+
+        ENTRY_ACTIONS[STATE_ESCAPE] = ACTION_CLEAR;
+        addTransitions(STATE_ESCAPE, 0x20, 0x2f, ACTION_COLLECT, STATE_ESCAPE_INTERMEDIATE);
+        addTransitions(STATE_ESCAPE, 0x30, 0x7e, ACTION_ESC_DISPATCH, STATE_GROUND);
+        addTransitions(STATE_ESCAPE, 'P', 'P', ACTION_IGNORE, STATE_DCS_ENTRY);
+        addTransitions(STATE_ESCAPE, 'X', 'X', ACTION_IGNORE, STATE_SOS_PM_APC_STRING);
+        addTransitions(STATE_ESCAPE, '[', '[', ACTION_IGNORE, STATE_CSI_ENTRY);
+        addTransitions(STATE_ESCAPE, ']', ']', ACTION_IGNORE, STATE_OSC_STRING);
+        addTransitions(STATE_ESCAPE, '^', '_', ACTION_IGNORE, STATE_SOS_PM_APC_STRING);
+
+        addTransitions(STATE_ESCAPE_INTERMEDIATE, 0x20, 0x2f, ACTION_COLLECT, STATE_UNCHANGED);
+        addTransitions(STATE_ESCAPE_INTERMEDIATE, 0x30, 0x7e, ACTION_ESC_DISPATCH, STATE_GROUND);
+
+        ENTRY_ACTIONS[STATE_CSI_ENTRY] = ACTION_CLEAR;
+        addTransitions(STATE_CSI_ENTRY, 0x20, 0x2f, ACTION_COLLECT, STATE_CSI_INTERMEDIATE);
+        addTransitions(STATE_CSI_ENTRY, 0x30, 0x39, ACTION_PARAM, STATE_CSI_PARAM);
+        addTransitions(STATE_CSI_ENTRY, ':', ':', ACTION_NEXT_SUB_PARAM, STATE_CSI_PARAM);
+        addTransitions(STATE_CSI_ENTRY, ';', ';', ACTION_NEXT_PARAM, STATE_CSI_PARAM);
+        addTransitions(STATE_CSI_ENTRY, 0x3c, 0x3f, ACTION_COLLECT, STATE_CSI_PARAM);
+        addTransitions(STATE_CSI_ENTRY, 0x40, 0x7e, ACTION_CSI_DISPATCH, STATE_GROUND);
+
+        addTransitions(STATE_CSI_PARAM, 0x20, 0x2f, ACTION_COLLECT, STATE_CSI_INTERMEDIATE);
+        addTransitions(STATE_CSI_PARAM, 0x30, 0x39, ACTION_PARAM, STATE_UNCHANGED);
+        addTransitions(STATE_CSI_PARAM, ':', ':', ACTION_NEXT_SUB_PARAM, STATE_UNCHANGED);
+        addTransitions(STATE_CSI_PARAM, ';', ';', ACTION_NEXT_PARAM, STATE_UNCHANGED);
+        addTransitions(STATE_CSI_PARAM, 0x3c, 0x3f, ACTION_IGNORE, STATE_CSI_IGNORE);
+        addTransitions(STATE_CSI_PARAM, 0x40, 0x7e, ACTION_CSI_DISPATCH, STATE_GROUND);
+
+        addTransitions(STATE_CSI_INTERMEDIATE, 0x20, 0x2f, ACTION_COLLECT, STATE_UNCHANGED);
+        addTransitions(STATE_CSI_INTERMEDIATE, 0x30, 0x3f, ACTION_IGNORE, STATE_CSI_IGNORE);
+        addTransitions(STATE_CSI_INTERMEDIATE, 0x40, 0x7e, ACTION_CSI_DISPATCH, STATE_GROUND);
+
+        addTransitions(STATE_CSI_IGNORE, 0x40, 0x7e, ACTION_IGNORE, STATE_GROUND);
+
+        ENTRY_ACTIONS[STATE_DCS_ENTRY] = ACTION_CLEAR;
+        addTransitions(STATE_DCS_ENTRY, 0x20, 0x2f, ACTION_COLLECT, STATE_DCS_INTERMEDIATE);
+        addTransitions(STATE_DCS_ENTRY, 0x30, 0x39, ACTION_PARAM, STATE_DCS_PARAM);
+        addTransitions(STATE_DCS_ENTRY, ':', ':', ACTION_IGNORE, STATE_DCS_IGNORE);
+        addTransitions(STATE_DCS_ENTRY, ';', ';', ACTION_NEXT_PARAM, STATE_DCS_PARAM);
+        addTransitions(STATE_DCS_ENTRY, 0x3c, 0x3f, ACTION_COLLECT, STATE_DCS_PARAM);
+        addTransitions(STATE_DCS_ENTRY, 0x40, 0x7e, ACTION_IGNORE, STATE_DCS_PASSTHROUGH);
+
+        addTransitions(STATE_DCS_PARAM, 0x20, 0x2f, ACTION_COLLECT, STATE_DCS_INTERMEDIATE);
+        addTransitions(STATE_DCS_PARAM, 0x30, 0x39, ACTION_PARAM, STATE_UNCHANGED);
+        addTransitions(STATE_DCS_PARAM, ':', ':', ACTION_IGNORE, STATE_DCS_IGNORE);
+        addTransitions(STATE_DCS_PARAM, ';', ';', ACTION_NEXT_PARAM, STATE_UNCHANGED);
+        addTransitions(STATE_DCS_PARAM, 0x3c, 0x3f, ACTION_IGNORE, STATE_DCS_IGNORE);
+        addTransitions(STATE_DCS_PARAM, 0x40, 0x7e, ACTION_IGNORE, STATE_DCS_PASSTHROUGH);
+
+        addTransitions(STATE_DCS_INTERMEDIATE, 0x20, 0x2f, ACTION_COLLECT, STATE_UNCHANGED);
+        addTransitions(STATE_DCS_INTERMEDIATE, 0x30, 0x3f, ACTION_IGNORE, STATE_DCS_IGNORE);
+        addTransitions(STATE_DCS_INTERMEDIATE, 0x40, 0x7e, ACTION_IGNORE, STATE_DCS_PASSTHROUGH);
+
+        ENTRY_ACTIONS[STATE_DCS_PASSTHROUGH] = ACTION_HOOK;
+        addTransitions(STATE_DCS_PASSTHROUGH, 0x20, 0x7e, ACTION_PUT, STATE_UNCHANGED);
+        addTransitions(STATE_DCS_PASSTHROUGH, 0xa0, 0xff, ACTION_PUT, STATE_UNCHANGED);
+
+        ENTRY_ACTIONS[STATE_OSC_STRING] = ACTION_OSC_START;
+        addTransitions(STATE_OSC_STRING, 0x07, 0x07, ACTION_OSC_END, STATE_GROUND);
+        addTransitions(STATE_OSC_STRING, 0x20, 0x7f, ACTION_OSC_PUT, STATE_UNCHANGED);
+        addTransitions(STATE_OSC_STRING, 0x80, 0xff, ACTION_OSC_PUT, STATE_UNCHANGED);
+    }
+
+    private static void addTransitions(int state, int first, int last,
+            int action, int nextState) {
+        for (int b = first; b <= last; b++) {
+            TRANSITIONS[(state << 8) | b] = (short) ((action << 4) | nextState);
         }
+    }
 
-        if (mUTF8ToFollow > 0) {
-            if ((b & 0xc0) != 0x80) {
-                /* Not a UTF-8 continuation byte (doesn't begin with 0b10)
-                   Replace the entire sequence with the replacement char */
-                mUTF8ToFollow = 0;
-                mUTF8ByteBuffer.clear();
+    private boolean handleUTF8Sequence(byte b) {
+        int c = b & 0xff;
+        if (mUTF8ToFollow == 0) {
+            int toFollow = UTF8_TO_FOLLOW[c];
+            if (toFollow == 0) {
+                // ASCII character -- we don't need to handle this
+                return false;
+            } else if (toFollow < 0) {
+                // Not a valid UTF-8 sequence start -- replace this char
                 emit(UNICODE_REPLACEMENT_CHAR);
-
-                /* The Unicode standard (section 3.9, definition D93) requires
-                 * that we now attempt to process this byte as though it were
-                 * the beginning of another possibly-valid sequence */
-                return handleUTF8Sequence(b);
+                return true;
             }
 
-            mUTF8ByteBuffer.put(b);
-            if (--mUTF8ToFollow == 0) {
-                // Sequence complete -- decode and emit it
-                ByteBuffer byteBuf = mUTF8ByteBuffer;
-                CharBuffer charBuf = mInputCharBuffer;
-                CharsetDecoder decoder = mUTF8Decoder;
-
-                byteBuf.rewind();
-                decoder.reset();
-                decoder.decode(byteBuf, charBuf, true);
-                decoder.flush(charBuf);
-
-                char[] chars = charBuf.array();
-                if (chars[0] >= 0x80 && chars[0] <= 0x9f) {
-                    /* Sequence decoded to a C1 control character which needs
-                       to be sent through process() again */
-                    process((byte) chars[0], false);
-                } else {
-                    emit(chars);
-                }
+            mUTF8ToFollow = toFollow;
+            mUTF8CodePoint = c & UTF8_LEAD_MASK[toFollow];
+            mUTF8MinCodePoint = UTF8_MIN_CODE_POINT[toFollow];
+            return true;
+        }
+
+        if ((c & 0xc0) != 0x80) {
+            /* Not a UTF-8 continuation byte (doesn't begin with 0b10)
+               Replace the entire sequence with the replacement char */
+            mUTF8ToFollow = 0;
+            emit(UNICODE_REPLACEMENT_CHAR);
+
+            /* The Unicode standard (section 3.9, definition D93) requires
+             * that we now attempt to process this byte as though it were
+             * the beginning of another possibly-valid sequence */
+            return handleUTF8Sequence(b);
+        }
 
-                byteBuf.clear();
-                charBuf.clear();
+        mUTF8CodePoint = (mUTF8CodePoint << 6) | (c & 0x3f);
+        if (--mUTF8ToFollow == 0) {
+            // Sequence complete -- emit it
+            int codePoint = mUTF8CodePoint;
+            if (!isValidUTF8CodePoint(codePoint, mUTF8MinCodePoint)) {
+                codePoint = UNICODE_REPLACEMENT_CHAR;
             }
-        } else {
-            if ((b & 0xe0) == 0xc0) { // 0b110 -- two-byte sequence
-                mUTF8ToFollow = 1;
-            } else if ((b & 0xf0) == 0xe0) { // 0b1110 -- three-byte sequence
-                mUTF8ToFollow = 2;
-            } else if ((b & 0xf8) == 0xf0) { // 0b11110 -- four-byte sequence
-                mUTF8ToFollow = 3;
+            if (codePoint >= 0x80 && codePoint <= 0x9f) {
+                /* Sequence decoded to a C1 control character which needs
+                   to be sent through process() again */
+                process((byte) codePoint, false);
             } else {
-                // Not a valid UTF-8 sequence start -- replace this char
-                emit(UNICODE_REPLACEMENT_CHAR);
-                return true;
+                emit(codePoint);
             }
-
-            mUTF8ByteBuffer.put(b);
         }
 
         return true;
     }
 
+    /**
+     * Whether a decoded UTF-8 sequence is well-formed: not an overlong
+     * encoding, not a surrogate, and not beyond the end of Unicode.
+     */
+    private static boolean isValidUTF8CodePoint(int codePoint, int minCodePoint) {
+        return codePoint >= minCodePoint && codePoint <= Character.MAX_CODE_POINT
+                && (codePoint < Character.MIN_SURROGATE
+                        || codePoint > Character.MAX_SURROGATE);
+    }
+
     private void setAltCharSet(boolean alternateCharSet) {
         mAlternateCharSet = alternateCharSet;
         computeEffectiveCharSet();
@@ -934,6 +1289,9 @@ private void doEscLSBQuest(byte b) {
                     mScreen = mAltBuffer;
                 }
                 break;
+            case 2026: // synchronized update
+                mSession.setSynchronizedUpdate(true);
+                break;
             }
             if (arg >= 1000 && arg <= 1003) {
                 mMouseTrackingMode = arg;
@@ -951,6 +1309,9 @@ private void doEscLSBQuest(byte b) {
             case 1049:
                 mScreen = mMainBuffer;
                 break;
+            case 2026:
+                mSession.setSynchronizedUpdate(false);
+                break;
             }
             if (arg >= 1000 && arg <= 1003) {
                 mMouseTrackingMode = 0;
@@ -966,7 +1327,7 @@ private void doEscLSBQuest(byte b) {
             break;
 
         default:
-            parseArg(b);
+            unknownSequence(b);
             break;
         }
 
@@ -996,30 +1357,160 @@ private int getDecFlagsMask(int argument) {
         return 0;
     }
 
-    private void startEscapeSequence(int escapeState) {
-        mEscapeState = escapeState;
-        mArgIndex = 0;
-        for (int j = 0; j < MAX_ESCAPE_PARAMETERS; j++) {
-            mArgs[j] = -1;
-        }
+    private void doLinefeed() {
+        doLinefeed(1);
     }
 
-    private void doLinefeed() {
-        int newCursorRow = mCursorRow + 1;
-        if (newCursorRow >= mBottomMargin) {
-            scroll();
-            newCursorRow = mBottomMargin - 1;
+    /**
+     * Move the cursor down count lines, scrolling once for each linefeed
+     * at or below the bottom margin.
+     */
+    private void doLinefeed(int count) {
+        int scrollCount;
+        if (mCursorRow >= mBottomMargin) {
+            scrollCount = count;
+        } else {
+            scrollCount = mCursorRow + count - (mBottomMargin - 1);
+        }
+        if (scrollCount > 0) {
+            scroll(scrollCount);
+            setCursorRow(mBottomMargin - 1);
+        } else {
+            setCursorRow(mCursorRow + count);
         }
-        setCursorRow(newCursorRow);
     }
 
-    private void continueSequence() {
-        mContinueSequence = true;
+    /**
+     * Handle a run of linefeeds and carriage returns starting at start, and
+     * return the index of the first byte after the run.  Doing the whole run
+     * at once lets us scroll the screen several lines in one operation.
+     */
+    private int doLinefeeds(byte[] buffer, int start, int end) {
+        int linefeeds = 0;
+        boolean carriageReturn = false;
+        int i;
+        for (i = start; i < end; i++) {
+            byte b = buffer[i];
+            if (b == 13) {
+                carriageReturn = true;
+            } else if (b >= 10 && b <= 12) { // LF, VT, FF
+                linefeeds++;
+            } else {
+                break;
+            }
+        }
+        // A carriage return doesn't change the row, so order doesn't matter
+        if (carriageReturn) {
+            setCursorCol(0);
+        }
+        if (linefeeds > 0) {
+            doLinefeed(linefeeds);
+        }
+        return i;
     }
 
-    private void continueSequence(int state) {
-        mEscapeState = state;
-        mContinueSequence = true;
+    /**
+     * Handle a run of short lines of printable ASCII, each followed by
+     * linefeeds and carriage returns, starting at start, and return the
+     * index of the first byte after the run.  This is what output like
+     * "yes" or a build log looks like, and handling it a line at a time
+     * would scroll the screen once per line; instead, we scroll once for
+     * the whole run and then write each line's text to the row it would
+     * have ended up on.
+     *
+     * Only lines which leave the screen in exactly the state process()
+     * would are taken: each one must fit on its row without reaching the
+     * last column (so no wrapping is involved), and none may scroll off
+     * the top of the scrolling region before the run is done.  If fewer
+     * than two lines qualify, nothing is done and start is returned.
+     */
+    private int doShortLines(byte[] buffer, int start, int end) {
+        int cursorRow = mCursorRow;
+        if (mAboutToAutoWrap || mInsertMode || cursorRow < mTopMargin
+                || cursorRow >= mBottomMargin) {
+            return start;
+        }
+        int lastCol = mColumns - 1;
+        int lastRow = mBottomMargin - 1;
+
+        // Find out how many lines we can take and how far they scroll
+        int lines = 0;
+        int linesEnd = start;
+        int row = cursorRow;
+        int col = mCursorCol;
+        int i = start;
+        while (i < end) {
+            int textEnd = i;
+            while (textEnd < end && buffer[textEnd] >= 32 && buffer[textEnd] < 127
+                    && col + textEnd - i < lastCol) {
+                textEnd++;
+            }
+            int linefeeds = 0;
+            boolean carriageReturn = false;
+            int lineEnd = textEnd;
+            for (; lineEnd < end; lineEnd++) {
+                byte b = buffer[lineEnd];
+                if (b == 13) {
+                    carriageReturn = true;
+                } else if (b >= 10 && b <= 12) { // LF, VT, FF
+                    linefeeds++;
+                } else {
+                    break;
+                }
+            }
+            if (linefeeds == 0
+                    || cursorRow - Math.max(0, row + linefeeds - lastRow) < mTopMargin) {
+                break;
+            }
+            lines++;
+            linesEnd = lineEnd;
+            row += linefeeds;
+            col = carriageReturn ? 0 : col + textEnd - i;
+            i = lineEnd;
+        }
+        if (lines < 2) {
+            return start;
+        }
+
+        int scrollCount = Math.max(0, row - lastRow);
+        if (scrollCount > 0) {
+            scroll(scrollCount);
+        }
+
+        // Now go through the lines again, writing their text
+        int style = getStyle();
+        char[] text = mRunBuffer;
+        int textLength = 0;
+        row = cursorRow - scrollCount;
+        col = mCursorCol;
+        i = start;
+        while (i < linesEnd) {
+            int length = 0;
+            for (; buffer[i] >= 32; i++) {
+                text[length++] = (char) buffer[i];
+            }
+            if (length > 0) {
+                mScreen.set(col, row, text, 0, length, style);
+                textLength += length;
+            }
+            boolean carriageReturn = false;
+            for (; i < linesEnd && buffer[i] < 32; i++) {
+                if (buffer[i] == 13) {
+                    carriageReturn = true;
+                } else {
+                    row++;
+                }
+            }
+            col = carriageReturn ? 0 : col + length;
+        }
+        setCursorRow(row);
+        setCursorCol(col);
+        if (textLength > 0) {
+            mCodePointCount += textLength;
+            mJustWrapped = false;
+            mLastEmittedCharWidth = 1;
+        }
+        return linesEnd;
     }
 
     private void doEscSelectLeftParen(byte b) {
@@ -1071,18 +1562,6 @@ private void doEscPound(byte b) {
 
     private void doEsc(byte b) {
         switch (b) {
-        case '#':
-            continueSequence(ESC_POUND);
-            break;
-
-        case '(':
-            continueSequence(ESC_SELECT_LEFT_PAREN);
-            break;
-
-        case ')':
-            continueSequence(ESC_SELECT_RIGHT_PAREN);
-            break;
-
         case '7': // DECSC save cursor
             mSavedCursorRow = mCursorRow;
             mSavedCursorCol = mCursorCol;
@@ -1133,27 +1612,18 @@ private void doEsc(byte b) {
             unimplementedSequence(b);
             break;
 
-        case 'P': // Device control string
-            unimplementedSequence(b);
-            break;
-
         case 'Z': // return terminal ID
             sendDeviceAttributes();
             break;
 
-        case '[':
-            continueSequence(ESC_LEFT_SQUARE_BRACKET);
+        case '\\': // ST -- string terminator
+            // The string has already been handled
             break;
 
         case '=': // DECKPAM
             mbKeypadApplicationMode = true;
             break;
 
-        case ']': // OSC
-            startCollectingOSCArgs();
-            continueSequence(ESC_RIGHT_SQUARE_BRACKET);
-            break;
-
         case '>' : // DECKPNM
             mbKeypadApplicationMode = false;
             break;
@@ -1249,22 +1719,22 @@ private void doEscLeftSquareBracket(byte b) {
         case 'L': // Insert Lines
         {
             int linesAfterCursor = mBottomMargin - mCursorRow;
-            int linesToInsert = Math.min(getArg0(1), linesAfterCursor);
-            int linesToMove = linesAfterCursor - linesToInsert;
-            mScreen.blockCopy(0, mCursorRow, mColumns, linesToMove, 0,
-                    mCursorRow + linesToInsert);
-            blockClear(0, mCursorRow, mColumns, linesToInsert);
+            if (linesAfterCursor > 0) {
+                int linesToInsert = Math.min(getArg0(1), linesAfterCursor);
+                mScreen.insertLines(mCursorRow, mBottomMargin, linesToInsert,
+                        getStyle());
+            }
         }
             break;
 
         case 'M': // Delete Lines
         {
             int linesAfterCursor = mBottomMargin - mCursorRow;
-            int linesToDelete = Math.min(getArg0(1), linesAfterCursor);
-            int linesToMove = linesAfterCursor - linesToDelete;
-            mScreen.blockCopy(0, mCursorRow + linesToDelete, mColumns,
-                    linesToMove, 0, mCursorRow);
-            blockClear(0, mCursorRow + linesToMove, mColumns, linesToDelete);
+            if (linesAfterCursor > 0) {
+                int linesToDelete = Math.min(getArg0(1), linesAfterCursor);
+                mScreen.deleteLines(mCursorRow, mBottomMargin, linesToDelete,
+                        getStyle());
+            }
         }
             break;
 
@@ -1279,8 +1749,24 @@ private void doEscLeftSquareBracket(byte b) {
         }
             break;
 
-        case 'T': // Mouse tracking
-            unimplementedSequence(b);
+        case 'S': // Scroll up
+        {
+            int linesToScroll = Math.min(getArg0(1), mBottomMargin - mTopMargin);
+            mScreen.deleteLines(mTopMargin, mBottomMargin, linesToScroll,
+                    getStyle());
+        }
+            break;
+
+        case 'T': // Scroll down, or mouse tracking with more arguments
+            if (mArgIndex > 0) {
+                unimplementedSequence(b);
+                break;
+            }
+        {
+            int linesToScroll = Math.min(getArg0(1), mBottomMargin - mTopMargin);
+            mScreen.insertLines(mTopMargin, mBottomMargin, linesToScroll,
+                    getStyle());
+        }
             break;
 
         case 'X': // Erase characters
@@ -1291,10 +1777,6 @@ private void doEscLeftSquareBracket(byte b) {
             setCursorCol(prevTabStop(mCursorCol));
             break;
 
-        case '?': // Esc [ ? -- start of a private mode set
-            continueSequence(ESC_LEFT_SQUARE_BRACKET_QUESTION_MARK);
-            break;
-
         case 'c': // Send device attributes
             sendDeviceAttributes();
             break;
@@ -1387,7 +1869,7 @@ private void doEscLeftSquareBracket(byte b) {
             break;
 
         default:
-            parseArg(b);
+            unknownSequence(b);
             break;
         }
     }
@@ -1396,6 +1878,12 @@ private void selectGraphicRendition() {
         // SGR
         for (int i = 0; i <= mArgIndex; i++) {
             int code = mArgs[i];
+            int subParams = countSubParams(i);
+            if (subParams > 0) {
+                selectGraphicRenditionSubParams(code, i, subParams);
+                i += subParams;
+                continue;
+            }
             if ( code < 0) {
                 if (mArgIndex > 0) {
                     continue;
@@ -1447,6 +1935,12 @@ private void selectGraphicRendition() {
                     mForeColor = color;
                 }
                 i += 2;
+            } else if (code == 38 && i+4 <= mArgIndex && mArgs[i+1] == 2) { // foreground 24-bit color
+                int color = trueColor(mArgs[i+2], mArgs[i+3], mArgs[i+4]);
+                if (color >= 0) {
+                    mForeColor = color;
+                }
+                i += 4;
             } else if (code == 39) { // set default text color
                 mForeColor = mDefaultForeColor;
             } else if (code >= 40 && code <= 47) { // background color
@@ -1458,6 +1952,12 @@ private void selectGraphicRendition() {
                     mBackColor = color;
                 }
                 i += 2;
+            } else if (code == 48 && i+4 <= mArgIndex && mArgs[i+1] == 2) { // background 24-bit color
+                int color = trueColor(mArgs[i+2], mArgs[i+3], mArgs[i+4]);
+                if (color >= 0) {
+                    mBackColor = color;
+                }
+                i += 4;
             } else if (code == 49) { // set default background color
                 mBackColor = mDefaultBackColor;
             } else if (code >= 90 && code <= 97) { // bright foreground color
@@ -1487,34 +1987,24 @@ private boolean isValidColor(int color) {
         return color >= 0 && color < TextStyle.ciColorLength;
     }
 
-    private void doEscRightSquareBracket(byte b) {
-        switch (b) {
-        case 0x7:
-            doOSC();
-            break;
-        case 0x1b: // Esc, probably start of Esc \ sequence
-            continueSequence(ESC_RIGHT_SQUARE_BRACKET_ESC);
-            break;
-        default:
-            collectOSCArgs(b);
-            break;
-        }
-    }
-
-    private void doEscRightSquareBracketEsc(byte b) {
-        switch (b) {
-        case '\\':
-            doOSC();
-            break;
-
-        default:
-            // The ESC character was not followed by a \, so insert the ESC and
-            // the current character in arg buffer.
-            collectOSCArgs((byte) 0x1b);
-            collectOSCArgs(b);
-            continueSequence(ESC_RIGHT_SQUARE_BRACKET);
-            break;
+    /**
+     * Get the color index for a 24-bit color, interning it in the screens'
+     * true color table.  Omitted components are taken to be 0.
+     *
+     * @return The color index, or -1 if a component is out of range.
+     */
+    private int trueColor(int red, int green, int blue) {
+        red = Math.max(red, 0);
+        green = Math.max(green, 0);
+        blue = Math.max(blue, 0);
+        if (red > 255 || green > 255 || blue > 255) {
+            if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
+                Log.w(EmulatorDebug.LOG_TAG,
+                        String.format("Invalid color %d;%d;%d", red, green, blue));
+            }
+            return -1;
         }
+        return mMainBuffer.getTrueColorTable().intern((red << 16) | (green << 8) | blue);
     }
 
     private void doOSC() { // Operating System Controls
@@ -1530,7 +2020,6 @@ private void doOSC() { // Operating System Controls
             unknownParameter(ps);
             break;
         }
-        finishSequence();
     }
 
     private void changeTitle(int parameter, String title) {
@@ -1626,38 +2115,75 @@ private void sendDeviceAttributes() {
     private void scroll() {
         //System.out.println("Scroll(): mTopMargin " + mTopMargin + " mBottomMargin " + mBottomMargin);
         mScrollCounter ++;
+        mScrollCount++;
+        mScrolledLineCount++;
         mScreen.scroll(mTopMargin, mBottomMargin, getStyle());
     }
 
+    private void scroll(int count) {
+        mScrollCounter += count;
+        mScrollCount++;
+        mScrolledLineCount += count;
+        int maxCount = mBottomMargin - mTopMargin;
+        int style = getStyle();
+        while (count > 0) {
+            int n = Math.min(count, maxCount);
+            mScreen.scroll(mTopMargin, mBottomMargin, n, style);
+            count -= n;
+        }
+    }
+
     /**
-     * Process the next ASCII character of a parameter.
-     *
-     * @param b The next ASCII character of the paramater sequence.
+     * Colon-separated forms of the SGR codes, e.g. ESC [ 4 : 3 m for curly
+     * underline, ESC [ 38 : 5 : n m for a 256 color foreground or
+     * ESC [ 38 : 2 : [colorspace] : r : g : b m for a 24-bit one.
      */
-    private void parseArg(byte b) {
-        if (b >= '0' && b <= '9') {
-            if (mArgIndex < mArgs.length) {
-                int oldValue = mArgs[mArgIndex];
-                int thisDigit = b - '0';
-                int value;
-                if (oldValue >= 0) {
-                    value = oldValue * 10 + thisDigit;
+    private void selectGraphicRenditionSubParams(int code, int i, int subParams) {
+        if (code == 4) { // underline style; 0 is none
+            if (mArgs[i+1] == 0) {
+                mEffect &= ~TextStyle.fxUnderline;
+            } else {
+                mEffect |= TextStyle.fxUnderline;
+            }
+        } else if ((code == 38 || code == 48) && subParams >= 2 && mArgs[i+1] == 5) {
+            int color = mArgs[i+2];
+            if (checkColor(color)) {
+                if (code == 38) {
+                    mForeColor = color;
                 } else {
-                    value = thisDigit;
+                    mBackColor = color;
                 }
-                mArgs[mArgIndex] = value;
             }
-            continueSequence();
-        } else if (b == ';') {
-            if (mArgIndex < mArgs.length) {
-                mArgIndex++;
+        } else if ((code == 38 || code == 48) && subParams >= 4 && mArgs[i+1] == 2) {
+            // The color space ID is optional
+            int first = subParams >= 5 ? i+3 : i+2;
+            int color = trueColor(mArgs[first], mArgs[first+1], mArgs[first+2]);
+            if (color >= 0) {
+                if (code == 38) {
+                    mForeColor = color;
+                } else {
+                    mBackColor = color;
+                }
             }
-            continueSequence();
         } else {
-            unknownSequence(b);
+            if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
+                Log.w(EmulatorDebug.LOG_TAG, String.format("SGR unknown code %d with %d sub-parameters", code, subParams));
+            }
         }
     }
 
+    /**
+     * Returns the number of sub-parameters following argument index.
+     */
+    private int countSubParams(int index) {
+        int count = 0;
+        while (index + count < mArgIndex
+                && (mArgSubParams & (1 << (index + count + 1))) != 0) {
+            count++;
+        }
+        return count;
+    }
+
     private int getArg0(int defaultValue) {
         return getArg(0, defaultValue, true);
     }
@@ -1680,11 +2206,9 @@ private void startCollectingOSCArgs() {
     }
 
     private void collectOSCArgs(byte b) {
+        // Anything beyond the maximum length is dropped
         if (mOSCArgLength < MAX_OSC_STRING_LENGTH) {
             mOSCArg[mOSCArgLength++] = b;
-            continueSequence();
-        } else {
-            unknownSequence(b);
         }
     }
 
@@ -1731,20 +2255,21 @@ private int nextOSCInt(int delimiter) {
     }
 
     private void unimplementedSequence(byte b) {
+        mUnimplementedSequenceCount++;
         if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
             logError("unimplemented", b);
         }
-        finishSequence();
     }
 
     private void unknownSequence(byte b) {
+        mUnknownSequenceCount++;
         if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
             logError("unknown", b);
         }
-        finishSequence();
     }
 
     private void unknownParameter(int parameter) {
+        mUnknownSequenceCount++;
         if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
             StringBuilder buf = new StringBuilder();
             buf.append("Unknown parameter");
@@ -1758,8 +2283,8 @@ private void logError(String errorType, byte b) {
             StringBuilder buf = new StringBuilder();
             buf.append(errorType);
             buf.append(" sequence ");
-            buf.append(" EscapeState: ");
-            buf.append(mEscapeState);
+            buf.append(" ParserState: ");
+            buf.append(mParserState);
             buf.append(" char: '");
             buf.append((char) b);
             buf.append("' (");
@@ -1784,11 +2309,6 @@ private void logError(String error) {
         if (EmulatorDebug.LOG_UNKNOWN_ESCAPE_SEQUENCES) {
             Log.e(EmulatorDebug.LOG_TAG, error);
         }
-        finishSequence();
-    }
-
-    private void finishSequence() {
-        mEscapeState = ESC_NONE;
     }
 
     private boolean autoWrapEnabled() {
@@ -1854,9 +2374,87 @@ private void emit(int c, int style) {
     }
 
     private void emit(int c) {
+        mCodePointCount++;
         emit(c, getStyle());
     }
 
+    /**
+     * Send a run of regular-width BMP characters to the screen.  This has
+     * the same effect as calling emit() for each character in turn, but
+     * stores as much of the run as fits on the current row at once.
+     *
+     * @param text The array containing the characters, none of which may be
+     *             a control, combining, wide or surrogate character.
+     * @param offset The index of the first character to emit.
+     * @param length The number of characters to emit.
+     * @param style The style to use for the whole run.
+     */
+    private void emitRun(char[] text, int offset, int length, int style) {
+        boolean autoWrap = autoWrapEnabled();
+        int columns = mColumns;
+        mCodePointCount += length;
+
+        while (length > 0) {
+            if (autoWrap && mAboutToAutoWrap && mCursorCol == columns - 1) {
+                mScreen.setLineWrap(mCursorRow);
+                mCursorCol = 0;
+                if (mCursorRow + 1 < mBottomMargin) {
+                    mCursorRow++;
+                } else {
+                    scroll();
+                }
+            }
+
+            int col = mCursorCol;
+            int count = Math.min(length, columns - col);
+
+            if (mInsertMode) { // Move characters to the right to make room
+                int destCol = col + count;
+                if (destCol < columns) {
+                    mScreen.blockCopy(col, mCursorRow, columns - destCol,
+                            1, destCol, mCursorRow);
+                }
+            }
+
+            try {
+                mScreen.set(col, mCursorRow, text, offset, count, style);
+            } catch (Exception e) {
+                // Store what we can of the row one character at a time
+                for (int i = 0; i < count; ++i) {
+                    try {
+                        mScreen.set(col + i, mCursorRow, text[offset + i], style);
+                    } catch (Exception e2) {
+                        Log.e(EmulatorDebug.LOG_TAG, "Exception while processing code point "
+                                + Integer.toString(text[offset + i]), e2);
+                    }
+                }
+            }
+            offset += count;
+            length -= count;
+
+            if (!autoWrap && length > 0) {
+                /* Without autowrap, everything past the right edge of the
+                   screen lands in the last column; only the last character
+                   of the run survives there */
+                mScreen.set(columns - 1, mCursorRow, text, offset + length - 1, 1, style);
+                length = 0;
+            }
+
+            int lastCol = col + count - 1;
+            if (autoWrap) {
+                mAboutToAutoWrap = (lastCol == columns - 1);
+
+                //Force line-wrap flag to trigger even for lines being typed
+                if(mAboutToAutoWrap)
+                    mScreen.setLineWrap(mCursorRow);
+            }
+            mCursorCol = Math.min(lastCol + 1, columns - 1);
+        }
+
+        mJustWrapped = false;
+        mLastEmittedCharWidth = 1;
+    }
+
     private void emit(byte b) {
         if (mUseAlternateCharSet && b < 128) {
             emit((int) mSpecialGraphicsCharMap[b]);
@@ -1866,33 +2464,29 @@ private void emit(byte b) {
     }
 
     /**
-     * Send a UTF-16 char or surrogate pair to the screen.
-     *
-     * @param c A char[2] containing either a single UTF-16 char or a surrogate pair to be sent to the screen.
-     */
-    private void emit(char[] c) {
-        if (Character.isHighSurrogate(c[0])) {
-            emit(Character.toCodePoint(c[0], c[1]));
-        } else {
-            emit((int) c[0]);
-        }
-    }
-
-    /**
-     * Send an array of UTF-16 chars to the screen.
+     * Send an array of UTF-16 chars to the screen.  A character which can't
+     * be stored is skipped, as it would be if it came through process().
      *
      * @param c A char[] array whose contents are to be sent to the screen.
      */
     private void emit(char[] c, int offset, int length, int style) {
-        for (int i = offset; i < length; ++i) {
+        for (int i = offset, end = offset + length; i < end; ++i) {
             if (c[i] == 0) {
                 break;
             }
+            mCodePointCount++;
+            int codePoint;
             if (Character.isHighSurrogate(c[i])) {
-                emit(Character.toCodePoint(c[i], c[i+1]), style);
+                codePoint = Character.toCodePoint(c[i], c[i+1]);
                 ++i;
             } else {
-                emit((int) c[i], style);
+                codePoint = c[i];
+            }
+            try {
+                emit(codePoint, style);
+            } catch (Exception e) {
+                Log.e(EmulatorDebug.LOG_TAG, "Exception while processing code point "
+                        + Integer.toString(codePoint), e);
             }
         }
     }
@@ -1921,15 +2515,37 @@ public void clearScrollCounter() {
         mScrollCounter = 0;
     }
 
+    /**
+     * Copy the emulator's counters into a metrics snapshot.
+     */
+    void getMetrics(TerminalMetrics metrics) {
+        metrics.codePoints = mCodePointCount;
+        System.arraycopy(mEscapeSequenceCounts, 0, metrics.escapeSequences, 0,
+                mEscapeSequenceCounts.length);
+        System.arraycopy(mControlSequenceCounts, 0, metrics.controlSequences, 0,
+                mControlSequenceCounts.length);
+        metrics.oscSequences = mOscCount;
+        metrics.unknownSequences = mUnknownSequenceCount;
+        metrics.unimplementedSequences = mUnimplementedSequenceCount;
+        metrics.scrolls = mScrollCount;
+        metrics.scrolledLines = mScrolledLineCount;
+        metrics.resizes = mResizeCount;
+        metrics.reflows = mReflowCount;
+        metrics.appendNanos = mAppendNanos;
+        metrics.demotedRows = mMainBuffer.getDemotedRows();
+        if (mAltBuffer != null) {
+            metrics.demotedRows += mAltBuffer.getDemotedRows();
+        }
+    }
+
     /**
      * Reset the terminal emulator to its initial state.
      */
     public void reset() {
         mCursorRow = 0;
         mCursorCol = 0;
-        mArgIndex = 0;
-        mContinueSequence = false;
-        mEscapeState = ESC_NONE;
+        clearSequence();
+        mParserState = STATE_GROUND;
         mSavedCursorRow = 0;
         mSavedCursorCol = 0;
         mSavedEffect = 0;
@@ -1940,6 +2556,7 @@ public void reset() {
         }
         mDecFlags |= K_SHOW_CURSOR_MASK;
         mSavedDecFlags = 0;
+        mSession.setSynchronizedUpdate(false);
         mInsertMode = false;
         mTopMargin = 0;
         mBottomMargin = mRows;
@@ -1958,8 +2575,6 @@ public void reset() {
         setUTF8Mode(mDefaultUTF8Mode);
         mUTF8EscapeUsed = false;
         mUTF8ToFollow = 0;
-        mUTF8ByteBuffer.clear();
-        mInputCharBuffer.clear();
     }
 
     public void setDefaultUTF8Mode(boolean defaultToUTF8Mode) {
@@ -1972,8 +2587,6 @@ public void setDefaultUTF8Mode(boolean defaultToUTF8Mode) {
     public void setUTF8Mode(boolean utf8Mode) {
         if (utf8Mode && !mUTF8Mode) {
             mUTF8ToFollow = 0;
-            mUTF8ByteBuffer.clear();
-            mInputCharBuffer.clear();
         }
         mUTF8Mode = utf8Mode;
         if (mUTF8ModeNotify != null) {
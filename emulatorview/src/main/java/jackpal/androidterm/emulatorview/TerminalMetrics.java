@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jackpal.androidterm.emulatorview;
+
+/**
+ * A snapshot of the counters kept by a {@link TermSession} and its terminal
+ * emulator.  All counts are cumulative over the life of the session.
+ * <p>
+ * A <code>TerminalMetrics</code> can be reused: pass the same object to
+ * {@link TermSession#getMetrics getMetrics} each time a snapshot is needed.
+ *
+ * @see TermSession#getMetrics
+ */
+public class TerminalMetrics {
+    long bytesIn;
+    long bytesOut;
+    long codePoints;
+    final long[] escapeSequences = new long[128];
+    final long[] controlSequences = new long[128];
+    long oscSequences;
+    long unknownSequences;
+    long unimplementedSequences;
+    long scrolls;
+    long scrolledLines;
+    long resizes;
+    long reflows;
+    long appendNanos;
+    long demotedRows;
+
+    /**
+     * The number of bytes read from the process.
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * The number of bytes written to the process.
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * The number of code points sent to the screen.
+     */
+    public long getCodePoints() {
+        return codePoints;
+    }
+
+    /**
+     * The number of escape sequences (ESC followed by zero or more
+     * intermediate bytes and a final byte) with the given final byte.
+     *
+     * @param finalByte The final byte of the sequence, e.g. 'M' for ESC M.
+     */
+    public long getEscapeSequences(int finalByte) {
+        return escapeSequences[finalByte & 0x7f];
+    }
+
+    /**
+     * The number of control sequences (CSI, parameters and a final byte)
+     * with the given final byte, including private sequences like
+     * CSI ? 1049 h.
+     *
+     * @param finalByte The final byte of the sequence, e.g. 'H' for CSI H.
+     */
+    public long getControlSequences(int finalByte) {
+        return controlSequences[finalByte & 0x7f];
+    }
+
+    /**
+     * The number of operating system commands (OSC) processed.
+     */
+    public long getOscSequences() {
+        return oscSequences;
+    }
+
+    /**
+     * The number of sequences or parameters the emulator didn't recognize.
+     */
+    public long getUnknownSequences() {
+        return unknownSequences;
+    }
+
+    /**
+     * The number of sequences the emulator recognized but doesn't
+     * implement.
+     */
+    public long getUnimplementedSequences() {
+        return unimplementedSequences;
+    }
+
+    /**
+     * The number of times the screen or scrolling region was scrolled.
+     */
+    public long getScrolls() {
+        return scrolls;
+    }
+
+    /**
+     * The total number of lines scrolled.
+     */
+    public long getScrolledLines() {
+        return scrolledLines;
+    }
+
+    /**
+     * The number of times the screen changed size.
+     */
+    public long getResizes() {
+        return resizes;
+    }
+
+    /**
+     * The number of resizes which had to reflow the transcript's text
+     * instead of resizing the screen in place.
+     */
+    public long getReflows() {
+        return reflows;
+    }
+
+    /**
+     * The total time, in nanoseconds, the emulator spent processing input.
+     */
+    public long getAppendNanos() {
+        return appendNanos;
+    }
+
+    /**
+     * The number of rows which had to be stored in the form which can hold
+     * any Unicode text, but were converted back to a compact form as they
+     * scrolled off the screen.
+     */
+    public long getDemotedRows() {
+        return demotedRows;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("bytesIn=").append(bytesIn);
+        buf.append(" bytesOut=").append(bytesOut);
+        buf.append(" codePoints=").append(codePoints);
+        appendSequences(buf, " esc={", escapeSequences);
+        appendSequences(buf, " csi={", controlSequences);
+        buf.append(" osc=").append(oscSequences);
+        buf.append(" unknown=").append(unknownSequences);
+        buf.append(" unimplemented=").append(unimplementedSequences);
+        buf.append(" scrolls=").append(scrolls);
+        buf.append(" scrolledLines=").append(scrolledLines);
+        buf.append(" resizes=").append(resizes);
+        buf.append(" reflows=").append(reflows);
+        buf.append(" appendMs=").append(appendNanos / 1000000);
+        buf.append(" demotedRows=").append(demotedRows);
+        return buf.toString();
+    }
+
+    private static void appendSequences(StringBuilder buf, String label, long[] counts) {
+        buf.append(label);
+        boolean first = true;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                if (!first) {
+                    buf.append(' ');
+                }
+                first = false;
+                buf.append((char) i).append('=').append(counts[i]);
+            }
+        }
+        buf.append('}');
+    }
+}
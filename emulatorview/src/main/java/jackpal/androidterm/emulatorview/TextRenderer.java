@@ -34,6 +34,11 @@ interface TextRenderer {
     public static final int MODE_FN_SHIFT = 6;
 
     void setReverseVideo(boolean reverseVideo);
+    /**
+     * Set the table which the 24-bit color indices in text styles refer to.
+     * Called before each row is drawn.
+     */
+    void setTrueColorTable(TrueColorTable table);
     float getCharacterWidth();
     int getCharacterHeight();
     /** @return pixels above top row of text to avoid looking cramped. */
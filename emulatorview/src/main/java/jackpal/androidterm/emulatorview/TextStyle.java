@@ -19,6 +19,12 @@ final class TextStyle {
 
     final static int ciColorLength = ciCursorBackground + 1;
 
+    // Indices from ciTrueColorBase up refer to 24-bit colors interned in a
+    // TrueColorTable, using the rest of the 9 bits available for a color
+    final static int ciTrueColorBase = ciColorLength;
+    final static int ciTrueColorCount = 0x200 - ciTrueColorBase;
+    final static int ciPaletteLength = ciTrueColorBase + ciTrueColorCount;
+
     final static int kNormalTextStyle = encode(ciForeground, ciBackground, fxNormal);
 
     static int encode(int foreColor, int backColor, int effect) {
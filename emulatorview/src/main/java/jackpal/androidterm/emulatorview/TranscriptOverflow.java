@@ -0,0 +1,401 @@
+package jackpal.androidterm.emulatorview;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import android.util.Log;
+
+/**
+ * Rows which no longer fit in a UnicodeTranscript, kept in a file.
+ *
+ * Rows are appended to the file as they leave the transcript, and never
+ * change afterwards.  A second file indexes them, holding where each row ends
+ * in the first as an 8-byte offset, so that any row can be found directly
+ * without the index taking up memory.  Both files are read back through
+ * windows mapped into memory, which move as different parts of the files
+ * are read.
+ *
+ * The files together grow to at most MAX_SIZE bytes.  Once they're full, or
+ * can't be written to, the rows already in them are kept and can still be
+ * read, but rows leaving the transcript after that are dropped, as they are
+ * without an overflow.
+ *
+ * The files are deleted when the overflow is closed.  Files left behind by a
+ * process which was killed first are deleted when the next process creates
+ * its first overflow in the same directory.
+ *
+ * Each row is stored with the number of columns it had.  It can be read back
+ * at that width, or cut off or padded with blanks to fit a transcript of a
+ * different width.
+ */
+final class TranscriptOverflow {
+    private static final String TAG = "TranscriptOverflow";
+
+    /** How much of the file is mapped at once. */
+    private static final int MAP_SIZE = 1024 * 1024;
+    /** How many bytes of rows are collected before they're written out. */
+    private static final int FLUSH_SIZE = 64 * 1024;
+    /** How many rows are collected before they're written out. */
+    private static final int FLUSH_ROWS = 1024;
+
+    /** The most bytes the row and index files may hold together. */
+    private static final long MAX_SIZE = 128L * 1024 * 1024;
+    /**
+     * The most rows the file may hold, leaving room for the transcript's own
+     * rows in the int row numbers counted back from the screen.
+     */
+    private static final int MAX_ROWS = Integer.MAX_VALUE / 2;
+
+    private static final String PREFIX = "transcript";
+    private static final String ROWS_SUFFIX = ".bin";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    /** The size of an index entry: a row's end offset. */
+    private static final int INDEX_ENTRY_SIZE = 8;
+    /** How many index entries are mapped at once. */
+    private static final int INDEX_MAP_ROWS = 16 * 1024;
+
+    /* Directories already cleared of files left by earlier processes */
+    private static final HashSet<File> sClearedDirectories = new HashSet<File>();
+
+    private final File mFile;
+    private RandomAccessFile mRaf;
+    private FileChannel mChannel;
+    private long mSize;
+    private int mRows;
+    /* Set once the files can't grow any more */
+    private boolean mFull;
+
+    private final File mIndexFile;
+    private RandomAccessFile mIndexRaf;
+    private FileChannel mIndexChannel;
+
+    /* Rows waiting to be written to the file, and where each will end */
+    private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+    private final DataOutputStream mPendingOut = new DataOutputStream(mPending);
+    private final ByteBuffer mPendingEnds =
+            ByteBuffer.allocate(FLUSH_ROWS * INDEX_ENTRY_SIZE);
+    private int mPendingRows;
+
+    private MappedByteBuffer mMap;
+    private long mMapStart;
+    private MappedByteBuffer mIndexMap;
+    private int mIndexMapFirst;
+    private byte[] mRowBuffer = new byte[256];
+
+    /* The row last read, as it was stored */
+    private int mRow = -1;
+    private int mStoredColumns;
+    private Object mStoredLine;
+    private StyleRow mStoredColor;
+    private boolean mLineWrap;
+
+    /* The row last read, at the width it was read at */
+    private int mColumns;
+    private Object mLine;
+    private StyleRow mColor;
+
+    /**
+     * Create an overflow file in the given directory.
+     */
+    TranscriptOverflow(File directory) throws IOException {
+        deleteStaleFiles(directory);
+        mFile = File.createTempFile(PREFIX, ROWS_SUFFIX, directory);
+        String name = mFile.getName();
+        mIndexFile = new File(directory,
+                name.substring(0, name.length() - ROWS_SUFFIX.length())
+                + INDEX_SUFFIX);
+        try {
+            mRaf = new RandomAccessFile(mFile, "rw");
+            mChannel = mRaf.getChannel();
+            mIndexRaf = new RandomAccessFile(mIndexFile, "rw");
+            mIndexChannel = mIndexRaf.getChannel();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Delete the overflow files in a directory, the first time this process
+     * uses it.  Any there already belong to a process which is gone, since
+     * the whole app runs in one process.  Creating a file waits for this, so
+     * no file in use is deleted.
+     */
+    private static void deleteStaleFiles(File directory) {
+        synchronized (sClearedDirectories) {
+            if (!sClearedDirectories.add(directory)) {
+                return;
+            }
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(PREFIX) && (name.endsWith(ROWS_SUFFIX)
+                        || name.endsWith(INDEX_SUFFIX))) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of rows in the file, including those not yet written out.
+     */
+    int getRows() {
+        return mRows + mPendingRows;
+    }
+
+    /**
+     * Add a row to the end of the file.  Rows are collected in memory and
+     * written out in batches.  If the file is full, the row is dropped.
+     */
+    void append(Object line, StyleRow color, boolean lineWrap, int columns) {
+        if (mChannel == null || mFull) {
+            return;
+        }
+        int rows = mRows + mPendingRows;
+        if (rows >= MAX_ROWS || mSize + mPending.size()
+                + (long) rows * INDEX_ENTRY_SIZE >= MAX_SIZE) {
+            Log.w(TAG, mFile + " is full, dropping transcript rows");
+            flush();
+            mFull = true;
+            return;
+        }
+        try {
+            mPendingOut.writeBoolean(lineWrap);
+            mPendingOut.writeShort(columns);
+            UnicodeTranscript.writeRow(mPendingOut, line, color);
+        } catch (IOException e) {
+            // Can't happen -- we're writing to memory
+            Log.e(TAG, "Couldn't store transcript row", e);
+            return;
+        }
+        mPendingEnds.putLong(mSize + mPending.size());
+        ++mPendingRows;
+        if (mPending.size() >= FLUSH_SIZE || mPendingRows == FLUSH_ROWS) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the rows added since the last flush() to the file.
+     */
+    void flush() {
+        if (mPendingRows == 0 || mChannel == null) {
+            return;
+        }
+        if (!mFull) {
+            try {
+                // The rows go in first, so the index never points past them
+                write(mChannel, ByteBuffer.wrap(mPending.toByteArray()), mSize);
+                mPendingEnds.flip();
+                write(mIndexChannel, mPendingEnds,
+                        (long) mRows * INDEX_ENTRY_SIZE);
+                mSize += mPending.size();
+                mRows += mPendingRows;
+            } catch (IOException e) {
+                // Keep what made it into the file, but stop adding to it
+                Log.e(TAG, "Couldn't write transcript rows to " + mFile, e);
+                mFull = true;
+            }
+        }
+        mPending.reset();
+        mPendingEnds.clear();
+        mPendingRows = 0;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Read a row from the file, cut off or padded to a number of columns.
+     * Afterwards, getLine(), getColor() and getLineWrap() return its
+     * contents.
+     *
+     * @param row The row to read, 0 being the oldest.
+     * @param columns The number of columns the row should have.
+     */
+    void read(int row, int columns) {
+        if (row == mRow && columns == mColumns) {
+            return;
+        }
+        read(row);
+        if (columns != mStoredColumns) {
+            mColumns = columns;
+            mLine = fitLine(mStoredLine, mStoredColumns, columns);
+            mColor = fitColor(mStoredColor, mStoredColumns, columns);
+        }
+    }
+
+    /**
+     * Read a row from the file at the width it was stored at.  Afterwards,
+     * getColumns() returns the width, and getLine(), getColor() and
+     * getLineWrap() the row's contents.
+     *
+     * @param row The row to read, 0 being the oldest.
+     */
+    void read(int row) {
+        if (row != mRow) {
+            readStored(row);
+        }
+        mColumns = mStoredColumns;
+        mLine = mStoredLine;
+        mColor = mStoredColor;
+    }
+
+    private void readStored(int row) {
+        if (row >= mRows) {
+            flush();
+        }
+        mRow = row;
+        mStoredColumns = 0;
+        mStoredLine = null;
+        mStoredColor = null;
+        mLineWrap = false;
+        if (mChannel == null || row >= mRows) {
+            return;
+        }
+        try {
+            long start = row == 0 ? 0 : getRowEnd(row - 1);
+            int length = (int) (getRowEnd(row) - start);
+            if (mMap == null || start < mMapStart
+                    || start + length > mMapStart + mMap.capacity()) {
+                mapAround(start, length);
+            }
+            if (mRowBuffer.length < length) {
+                mRowBuffer = new byte[Math.max(length, 2 * mRowBuffer.length)];
+            }
+            mMap.position((int) (start - mMapStart));
+            mMap.get(mRowBuffer, 0, length);
+
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(mRowBuffer, 0, length));
+            mLineWrap = in.readBoolean();
+            int columns = in.readShort();
+            mStoredLine = UnicodeTranscript.readLine(in, columns);
+            mStoredColor = UnicodeTranscript.readColor(in, columns);
+            mStoredColumns = columns;
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't read transcript row from " + mFile, e);
+        }
+    }
+
+    /**
+     * Where a row ends in the file, from the index.  The part of the index
+     * around the row is mapped, so that rows on either side of it can be
+     * found without mapping the index again.
+     */
+    private long getRowEnd(int row) throws IOException {
+        int first = mIndexMapFirst;
+        if (mIndexMap == null || row < first
+                || row >= first + mIndexMap.capacity() / INDEX_ENTRY_SIZE) {
+            first = Math.max(0, row - INDEX_MAP_ROWS / 2);
+            int rows = Math.min(INDEX_MAP_ROWS, mRows - first);
+            mIndexMap = mIndexChannel.map(FileChannel.MapMode.READ_ONLY,
+                    (long) first * INDEX_ENTRY_SIZE,
+                    (long) rows * INDEX_ENTRY_SIZE);
+            mIndexMapFirst = first;
+        }
+        return mIndexMap.getLong((row - first) * INDEX_ENTRY_SIZE);
+    }
+
+    /**
+     * Map the part of the file around a row, so that rows on either side of
+     * it can be read without mapping the file again.
+     */
+    private void mapAround(long start, int length) throws IOException {
+        long mapStart = Math.max(0, start - MAP_SIZE / 2);
+        long mapSize = Math.max(Math.min(MAP_SIZE, mSize - mapStart),
+                start + length - mapStart);
+        mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapSize);
+        mMapStart = mapStart;
+    }
+
+    private static Object fitLine(Object line, int oldColumns, int columns) {
+        if (line instanceof byte[]) {
+            byte[] newLine = Arrays.copyOf((byte[]) line, columns);
+            if (columns > oldColumns) {
+                Arrays.fill(newLine, oldColumns, columns, (byte) ' ');
+            }
+            return newLine;
+        } else if (line instanceof char[]) {
+            char[] newLine = Arrays.copyOf((char[]) line, columns);
+            if (columns > oldColumns) {
+                Arrays.fill(newLine, oldColumns, columns, ' ');
+            }
+            return newLine;
+        } else if (line != null) {
+            return ((FullUnicodeLine) line).withColumns(columns);
+        }
+        return null;
+    }
+
+    private static StyleRow fitColor(StyleRow color, int oldColumns, int columns) {
+        if (color == null) {
+            return null;
+        }
+        int keep = Math.min(oldColumns, columns);
+        StyleRow newColor = new StyleRow(color.get(keep - 1), columns);
+        color.copy(0, newColor, 0, keep);
+        return newColor;
+    }
+
+    int getColumns() {
+        return mColumns;
+    }
+
+    Object getLine() {
+        return mLine;
+    }
+
+    StyleRow getColor() {
+        return mColor;
+    }
+
+    boolean getLineWrap() {
+        return mLineWrap;
+    }
+
+    private void closeFile(RandomAccessFile raf, File file) {
+        try {
+            if (raf != null) {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't close " + file, e);
+        }
+    }
+
+    /**
+     * Close and delete the file and its index.
+     */
+    void close() {
+        closeFile(mRaf, mFile);
+        closeFile(mIndexRaf, mIndexFile);
+        mRaf = null;
+        mChannel = null;
+        mIndexRaf = null;
+        mIndexChannel = null;
+        mMap = null;
+        mIndexMap = null;
+        mFile.delete();
+        mIndexFile.delete();
+    }
+}
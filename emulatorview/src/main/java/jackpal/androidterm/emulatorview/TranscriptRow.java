@@ -0,0 +1,173 @@
+package jackpal.androidterm.emulatorview;
+
+/**
+ * A read-only view of one row of a UnicodeTranscript: the characters in each
+ * column, how many columns each takes, and the runs of columns sharing a
+ * style, read straight from the transcript's own storage.
+ *
+ * A view is pointed at a row by UnicodeTranscript.getRow(), and can be
+ * pointed at any number of rows in turn, so walking a screen or a whole
+ * transcript allocates nothing.  It's only good until the transcript next
+ * changes, or until another row is read from the overflow.
+ *
+ * Renderers which work on UTF-16 text can get the row's text with getText(),
+ * and find each column in it with getTextIndex().  Rows of basic and full
+ * Unicode text hand back the array they're kept in; rows of Latin-1 text are
+ * decoded into a buffer belonging to the view.
+ */
+final class TranscriptRow {
+    private Object mLine;
+    private StyleRow mColor;
+    private boolean mLineWrap;
+    private int mColumns;
+    private int mDefaultStyle;
+
+    /* Latin-1 text decoded for getText(), valid if mDecoded is true */
+    private char[] mDecodedLine;
+    private boolean mDecoded;
+
+    void set(Object line, StyleRow color, boolean lineWrap, int columns,
+            int defaultStyle) {
+        mLine = line;
+        mColor = color;
+        mLineWrap = lineWrap;
+        mColumns = columns;
+        mDefaultStyle = defaultStyle;
+        mDecoded = false;
+    }
+
+    int getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * Whether the row hasn't been written to since it was last erased, and
+     * holds only spaces.  The spaces may have styles other than the default,
+     * if the row was erased in them.
+     */
+    boolean isBlank() {
+        return mLine == null;
+    }
+
+    /**
+     * Whether the row holds one UTF-16 char per column, so that getText()
+     * needs no getTextIndex() to find a column.
+     */
+    boolean isBasic() {
+        return !(mLine instanceof FullUnicodeLine);
+    }
+
+    boolean getLineWrap() {
+        return mLineWrap;
+    }
+
+    /**
+     * The code point of the character in a column, or the first code point
+     * of a character with combining characters.  The second column of an East
+     * Asian wide character gives the wide character.
+     */
+    int getCodePoint(int column) {
+        Object line = mLine;
+        if (line == null) {
+            return ' ';
+        } else if (line instanceof byte[]) {
+            return ((byte[]) line)[column] & 0xff;
+        } else if (line instanceof char[]) {
+            return ((char[]) line)[column];
+        }
+        return ((FullUnicodeLine) line).getCodePoint(column);
+    }
+
+    /**
+     * The number of columns taken by the character starting in a column, or
+     * 0 if the column is the second column of an East Asian wide character.
+     */
+    int getCharWidth(int column) {
+        Object line = mLine;
+        if (line instanceof FullUnicodeLine) {
+            return ((FullUnicodeLine) line).getCharWidth(column);
+        }
+        return 1;
+    }
+
+    /**
+     * Whether a column holds a space, with no combining characters.
+     */
+    boolean isBlank(int column) {
+        Object line = mLine;
+        if (line == null) {
+            return true;
+        } else if (line instanceof byte[]) {
+            return ((byte[]) line)[column] == ' ';
+        } else if (line instanceof char[]) {
+            return ((char[]) line)[column] == ' ';
+        }
+        return ((FullUnicodeLine) line).isBlank(column);
+    }
+
+    int getStyle(int column) {
+        StyleRow color = mColor;
+        if (color == null) {
+            return mDefaultStyle;
+        }
+        return color.get(column);
+    }
+
+    /**
+     * The column after the run of columns in the same style which contains
+     * the given column.
+     */
+    int getStyleRunEnd(int column) {
+        StyleRow color = mColor;
+        if (color == null) {
+            return mColumns;
+        }
+        return Math.min(color.findRunEnd(column), mColumns);
+    }
+
+    /**
+     * The text of the row in UTF-16, as getTextIndex() lays it out, or null
+     * if the row is blank.  The array may be longer than the text; anything
+     * after getTextIndex(getColumns()) is garbage.
+     */
+    char[] getText() {
+        Object line = mLine;
+        if (line == null) {
+            return null;
+        } else if (line instanceof char[]) {
+            return (char[]) line;
+        } else if (line instanceof FullUnicodeLine) {
+            return ((FullUnicodeLine) line).getLine();
+        }
+        char[] text = mDecodedLine;
+        if (!mDecoded) {
+            byte[] latin1Line = (byte[]) line;
+            int columns = mColumns;
+            if (text == null || text.length < columns) {
+                text = mDecodedLine = new char[columns];
+            }
+            for (int i = 0; i < columns; ++i) {
+                text[i] = (char) (latin1Line[i] & 0xff);
+            }
+            mDecoded = true;
+        }
+        return text;
+    }
+
+    /**
+     * The index in getText() of the character in a column; for the second
+     * column of an East Asian wide character, the index of the wide
+     * character.  A column of getColumns() gives the end of the text.
+     */
+    int getTextIndex(int column) {
+        Object line = mLine;
+        if (line instanceof FullUnicodeLine) {
+            FullUnicodeLine fullLine = (FullUnicodeLine) line;
+            if (column == mColumns) {
+                return fullLine.getSpaceUsed();
+            }
+            return fullLine.findStartOfColumn(column);
+        }
+        return column;
+    }
+}
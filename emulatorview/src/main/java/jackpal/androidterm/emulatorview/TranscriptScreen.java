@@ -16,8 +16,11 @@
 
 package jackpal.androidterm.emulatorview;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import android.graphics.Canvas;
+import android.util.Log;
 
 /**
  * A TranscriptScreen is a screen that remembers data that's been scrolled. The
@@ -26,14 +29,15 @@
  * expose its internal data structures.
  */
 class TranscriptScreen implements Screen {
+    private static final String TAG = "TranscriptScreen";
+
     /**
      * The width of the transcript, in characters. Fixed at initialization.
      */
     private int mColumns;
 
     /**
-     * The total number of rows in the transcript and the screen. Fixed at
-     * initialization.
+     * The most rows kept in the transcript and the screen together.
      */
     private int mTotalRows;
 
@@ -44,11 +48,33 @@ class TranscriptScreen implements Screen {
 
     private UnicodeTranscript mData;
 
+    /**
+     * The number of rows demoted by transcripts since replaced or dropped.
+     */
+    private long mDemotedRows;
+
+    /**
+     * The 24-bit colors used by text on this screen.  Kept across resizes.
+     */
+    private TrueColorTable mTrueColorTable = new TrueColorTable();
+
+    /**
+     * The view of the row being drawn, reused for every row.
+     */
+    private TranscriptRow mRowView = new TranscriptRow();
+
+    /**
+     * Spaces for drawing blank rows, at least as long as the screen is wide.
+     */
+    private char[] mBlankLine;
+
     /**
      * Create a transcript screen.
      *
      * @param columns the width of the screen in characters.
      * @param totalRows the height of the entire text area, in rows of text.
+     *        Memory for the rows is only allocated as text scrolls into the
+     *        transcript.
      * @param screenRows the height of just the screen, not including the
      *        transcript that holds lines that have scrolled off the top of the
      *        screen.
@@ -67,6 +93,18 @@ private void init(int columns, int totalRows, int screenRows, int style) {
         mData.blockSet(0, 0, mColumns, mScreenRows, ' ', style);
     }
 
+    TrueColorTable getTrueColorTable() {
+        return mTrueColorTable;
+    }
+
+    /**
+     * Share another screen's true color table, so that text styles can be
+     * used on either screen.
+     */
+    void setTrueColorTable(TrueColorTable table) {
+        mTrueColorTable = table;
+    }
+
     public void setColorScheme(ColorScheme scheme) {
         mData.setDefaultStyle(TextStyle.kNormalTextStyle);
     }
@@ -79,6 +117,10 @@ public void finish() {
          * get rid of our references to this data to help keep the amount of
          * memory being leaked down.
          */
+        if (mData != null) {
+            mData.setOverflow(null);
+            mDemotedRows += mData.getDemotedRows();
+        }
         mData = null;
     }
 
@@ -103,6 +145,10 @@ public void set(int x, int y, byte b, int style) {
         mData.setChar(x, y, b, style);
     }
 
+    public void set(int x, int y, char[] text, int offset, int count, int style) {
+        mData.setChars(x, y, text, offset, count, style);
+    }
+
     /**
      * Scroll the screen down one line. To scroll the whole screen of a 24 line
      * screen, the arguments would be (0, 24).
@@ -112,7 +158,83 @@ public void set(int x, int y, byte b, int style) {
      * @param style the style for the newly exposed line.
      */
     public void scroll(int topMargin, int bottomMargin, int style) {
-        mData.scroll(topMargin, bottomMargin, style);
+        mData.scroll(topMargin, bottomMargin, 1, style);
+    }
+
+    /**
+     * Scroll the screen down several lines at once.
+     *
+     * @param topMargin First line that is scrolled.
+     * @param bottomMargin One line after the last line that is scrolled.
+     * @param count the number of lines to scroll.
+     * @param style the style for the newly exposed lines.
+     */
+    public void scroll(int topMargin, int bottomMargin, int count, int style) {
+        mData.scroll(topMargin, bottomMargin, count, style);
+    }
+
+    /**
+     * Limit how many of the lines scrolled into the transcript from now on
+     * are kept; once there are more, the oldest of them are discarded, and
+     * the most recent ones and the older transcript are kept.  The limit is
+     * kept across resizes, but only lines scrolled in after the resize count
+     * against it.
+     *
+     * @param lines The number of lines, or -1 to remove the limit.
+     */
+    public void setScrollbackLimit(int lines) {
+        if (mData != null) {
+            mData.setScrollbackLimit(lines);
+        }
+    }
+
+    /**
+     * Keep lines which no longer fit in the transcript in a file in the
+     * given directory, instead of discarding them.  The file is deleted
+     * when the screen is finished, or if the process is killed first, when
+     * the next process starts keeping lines in the same directory.
+     *
+     * @param directory The directory, or null to stop keeping the lines.
+     *        Lines already kept are discarded.
+     */
+    public void setOverflowDirectory(File directory) {
+        if (mData == null) {
+            return;
+        }
+        TranscriptOverflow overflow = null;
+        if (directory != null) {
+            try {
+                overflow = new TranscriptOverflow(directory);
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't create transcript overflow in " + directory, e);
+            }
+        }
+        mData.setOverflow(overflow);
+    }
+
+    /**
+     * Insert blank lines, moving the lines between row and the bottom margin
+     * down.
+     *
+     * @param row the row at which to insert lines.
+     * @param bottomMargin One line after the last line that is moved.
+     * @param count the number of lines to insert.
+     * @param style the style for the inserted lines.
+     */
+    public void insertLines(int row, int bottomMargin, int count, int style) {
+        mData.insertLines(row, bottomMargin, count, style);
+    }
+
+    /**
+     * Delete lines, moving the lines between row and the bottom margin up.
+     *
+     * @param row the first row to be deleted.
+     * @param bottomMargin One line after the last line that is moved.
+     * @param count the number of lines to delete.
+     * @param style the style for the inserted blank lines.
+     */
+    public void deleteLines(int row, int bottomMargin, int count, int style) {
+        mData.deleteLines(row, bottomMargin, count, style);
     }
 
     /**
@@ -165,12 +287,10 @@ public void blockSet(int sx, int sy, int w, int h, int val,
      */
     public final void drawText(int row, Canvas canvas, float x, float y,
             TextRenderer renderer, int cx, int selx1, int selx2, String imeText, int cursorMode) {
-        char[] line;
-        StyleRow color;
+        TranscriptRow rowView = mRowView;
         int cursorWidth = 1;
         try {
-            line = mData.getLine(row);
-            color = mData.getLineColor(row);
+            mData.getRow(row, rowView);
         } catch (IllegalArgumentException e) {
             // Out-of-bounds rows are blank.
             return;
@@ -180,31 +300,41 @@ public final void drawText(int row, Canvas canvas, float x, float y,
             return;
         }
         int defaultStyle = mData.getDefaultStyle();
+        renderer.setTrueColorTable(mTrueColorTable);
 
-        if (line == null) {
-            // Line is blank.
+        if (rowView.isBlank()) {
+            // Line is blank, but may have been erased in a style with a background
+            char[] blank = getBlankLine();
+            int column = 0;
+            while (column < mColumns) {
+                int runEnd = rowView.getStyleRunEnd(column);
+                int style = rowView.getStyle(column);
+                if (style != defaultStyle) {
+                    renderer.drawTextRun(canvas, x, y, column, runEnd - column,
+                            blank, 0, runEnd - column, false, style,
+                            -1, 0, 1, 1, cursorMode);
+                }
+                column = runEnd;
+            }
             if (selx1 != selx2) {
                 // We need to draw a selection
-                char[] blank = new char[selx2-selx1];
-                Arrays.fill(blank, ' ');
                 renderer.drawTextRun(canvas, x, y, selx1, selx2-selx1,
                                 blank, 0, 1, true, defaultStyle,
                                 cx, 0, 1, 1, cursorMode);
             }
             if (cx != -1) {
-                char[] blank = new char[1];
-                Arrays.fill(blank, ' ');
                 // We need to draw the cursor
                 renderer.drawTextRun(canvas, x, y, cx, 1,
-                        blank, 0, 1, true, defaultStyle,
+                        blank, 0, 1, true, rowView.getStyle(cx),
                         cx, 0, 1, 1, cursorMode);
             }
 
             return;
         }
 
+        char[] line = rowView.getText();
+        boolean basic = rowView.isBasic();
         int columns = mColumns;
-        int lineLen = line.length;
         int lastStyle = 0;
         boolean lastSelectionStyle = false;
         int runWidth = 0;
@@ -212,35 +342,39 @@ public final void drawText(int row, Canvas canvas, float x, float y,
         int lastRunStartIndex = -1;
         boolean forceFlushRun = false;
         int column = 0;
-        int nextColumn = 0;
-        int displayCharWidth = 0;
         int index = 0;
         int cursorIndex = 0;
         int cursorIncr = 0;
-        while (column < columns && index < lineLen && line[index] != '\0') {
-            int incr = 1;
+        while (column < columns) {
             int width;
-            if (Character.isHighSurrogate(line[index])) {
-                width = UnicodeTranscript.charWidth(line, index);
-                incr++;
+            int nextColumn;
+            int nextIndex;
+            if (basic) {
+                /* One char per column: take the rest of the style run, up to
+                   where the selection starts or ends, in one step */
+                width = 1;
+                nextColumn = rowView.getStyleRunEnd(column);
+                if (column < selx1) {
+                    nextColumn = Math.min(nextColumn, selx1);
+                } else if (column <= selx2) {
+                    nextColumn = Math.min(nextColumn, selx2 + 1);
+                }
+                nextIndex = nextColumn;
             } else {
-                width = UnicodeTranscript.charWidth(line[index]);
+                width = rowView.getCharWidth(column);
+                nextColumn = column + width;
+                nextIndex = rowView.getTextIndex(nextColumn);
             }
-            if (width > 0) {
-                // We've moved on to the next column
-                column = nextColumn;
-                displayCharWidth = width;
-            }
-            int style = color.get(column);
+            int style = rowView.getStyle(column);
             boolean selectionStyle = false;
-            if ((column >= selx1 || (displayCharWidth == 2 && column == selx1 - 1)) &&
+            if ((column >= selx1 || (width == 2 && column == selx1 - 1)) &&
                     column <= selx2) {
                 // Draw selection:
                 selectionStyle = true;
             }
             if (style != lastStyle
                     || selectionStyle != lastSelectionStyle
-                    || (width > 0 && forceFlushRun)) {
+                    || forceFlushRun) {
                 if (lastRunStart >= 0) {
                     renderer.drawTextRun(canvas, x, y, lastRunStart, runWidth,
                             line,
@@ -255,19 +389,15 @@ public final void drawText(int row, Canvas canvas, float x, float y,
                 lastRunStartIndex = index;
                 forceFlushRun = false;
             }
-            if (cx == column) {
-                if (width > 0) {
-                    cursorIndex = index;
-                    cursorIncr = incr;
-                    cursorWidth = width;
-                } else {
-                    // Combining char attaching to the char under the cursor
-                    cursorIncr += incr;
-                }
+            if (basic ? cx >= column && cx < nextColumn : cx == column) {
+                // Including any combining chars attaching to the char
+                cursorIndex = index + cx - column;
+                cursorIncr = basic ? 1 : nextIndex - index;
+                cursorWidth = width;
             }
-            runWidth += width;
-            nextColumn += width;
-            index += incr;
+            runWidth += nextColumn - column;
+            column = nextColumn;
+            index = nextIndex;
             if (width > 1) {
                 /* We cannot draw two or more East Asian wide characters in the
                    same run, because we need to make each wide character take
@@ -294,6 +424,15 @@ public final void drawText(int row, Canvas canvas, float x, float y,
         }
      }
 
+    private char[] getBlankLine() {
+        char[] blank = mBlankLine;
+        if (blank == null || blank.length < mColumns) {
+            blank = mBlankLine = new char[mColumns];
+            Arrays.fill(blank, ' ');
+        }
+        return blank;
+    }
+
     /**
      * Get the count of active rows.
      *
@@ -312,6 +451,17 @@ public int getActiveTranscriptRows() {
         return mData.getActiveTranscriptRows();
     }
 
+    /**
+     * Get the number of full Unicode rows converted back to compact storage
+     * as they scrolled into the transcript, over the life of the screen.
+     */
+    long getDemotedRows() {
+        if (mData == null) {
+            return mDemotedRows;
+        }
+        return mDemotedRows + mData.getDemotedRows();
+    }
+
     public String getTranscriptText() {
         return internalGetTranscriptText(null, 0, -mData.getActiveTranscriptRows(), mColumns, mScreenRows);
     }
@@ -331,9 +481,8 @@ public String getSelectedText(GrowableIntArray colors, int selX1, int selY1, int
     private String internalGetTranscriptText(GrowableIntArray colors, int selX1, int selY1, int selX2, int selY2) {
         StringBuilder builder = new StringBuilder();
         UnicodeTranscript data = mData;
-        int columns = mColumns;
-        char[] line;
-        StyleRow rowColorBuffer = null;
+        TranscriptRow rowView = new TranscriptRow();
+        int defaultColor = data.getDefaultStyle();
         if (selY1 < -data.getActiveTranscriptRows()) {
             selY1 = -data.getActiveTranscriptRows();
         }
@@ -341,25 +490,26 @@ private String internalGetTranscriptText(GrowableIntArray colors, int selX1, int
             selY2 = mScreenRows - 1;
         }
         for (int row = selY1; row <= selY2; row++) {
+            /* Rows from the overflow keep the width they were written at,
+             * which may be wider or narrower than the screen */
+            data.getStoredRow(row, rowView);
+            int columns = rowView.getColumns();
             int x1 = 0;
             int x2;
             if ( row == selY1 ) {
-                x1 = selX1;
+                x1 = Math.min(selX1, columns);
             }
             if ( row == selY2 ) {
                 x2 = selX2 + 1;
-                if (x2 > columns) {
+                if (x2 > columns || x2 >= mColumns) {
+                    // A selection to the edge of the screen takes the whole row
                     x2 = columns;
                 }
             } else {
                 x2 = columns;
             }
-            line = data.getLine(row, x1, x2);
-            if (colors != null) {
-                rowColorBuffer = data.getLineColor(row, x1, x2);
-            }
-            if (line == null) {
-                if (!data.getLineWrap(row) && row < selY2 && row < mScreenRows - 1) {
+            if (rowView.isBlank()) {
+                if (!rowView.getLineWrap() && row < selY2 && row < mScreenRows - 1) {
                     builder.append('\n');
                     if (colors != null) {
                         colors.append(0);
@@ -367,60 +517,52 @@ private String internalGetTranscriptText(GrowableIntArray colors, int selX1, int
                 }
                 continue;
             }
-            int defaultColor = mData.getDefaultStyle();
-            int lastPrintingChar = -1;
-            int lineLen = line.length;
-            int i;
-            int column = 0;
-            for (i = 0; i < lineLen; ++i) {
-                char c = line[i];
-                if (c == 0) {
-                    break;
-                }
-                
-                int style = defaultColor;
-                try {
-                    if (rowColorBuffer != null) {
-                        style = rowColorBuffer.get(column);
-                    }
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    // XXX This probably shouldn't happen ...
-                    style = defaultColor;
-                }
-
-                if (c != ' ' || style != defaultColor) {
-                    lastPrintingChar = i;
+            /* If either end of the selection is in the middle of an East
+             * Asian wide character, include the whole character */
+            if (x1 > 0 && x1 < columns && rowView.getCharWidth(x1) == 0) {
+                --x1;
+            }
+            if (x2 < columns && rowView.getCharWidth(x2) == 0) {
+                ++x2;
+            }
+            int lastPrintingColumn = -1;
+            for (int column = x1; column < x2; ++column) {
+                if (rowView.getCharWidth(column) == 0) {
+                    continue;
                 }
-                if (!Character.isLowSurrogate(c)) {
-                    column += UnicodeTranscript.charWidth(line, i);
+                // Styled spaces only count when the styles are wanted too
+                if (!rowView.isBlank(column)
+                        || (colors != null && rowView.getStyle(column) != defaultColor)) {
+                    lastPrintingColumn = column;
                 }
             }
-            if (data.getLineWrap(row) && lastPrintingChar > -1 && x2 == columns) {
+            int end;
+            if (rowView.getLineWrap() && lastPrintingColumn > -1 && x2 == columns) {
                 // If the line was wrapped, we shouldn't lose trailing space
-                lastPrintingChar = i - 1;
+                end = x2;
+            } else if (lastPrintingColumn > -1) {
+                end = lastPrintingColumn + rowView.getCharWidth(lastPrintingColumn);
+            } else {
+                end = x1;
             }
-            builder.append(line, 0, lastPrintingChar + 1);
+            char[] line = rowView.getText();
+            int startIndex = rowView.getTextIndex(x1);
+            builder.append(line, startIndex, rowView.getTextIndex(end) - startIndex);
             if (colors != null) {
-                if (rowColorBuffer != null) {
-                    column = 0;
-                    for (int j = 0; j <= lastPrintingChar; ++j) {
-                        colors.append(rowColorBuffer.get(column));
-                        column += UnicodeTranscript.charWidth(line, j);
-                        if (Character.isHighSurrogate(line[j])) {
-                            ++j;
-                        }
+                for (int column = x1; column < end; ++column) {
+                    int width = rowView.getCharWidth(column);
+                    if (width == 0) {
+                        continue;
                     }
-                } else {
-                    for (int j = 0; j <= lastPrintingChar; ++j) {
-                        colors.append(defaultColor);
-                        char c = line[j];
-                        if (Character.isHighSurrogate(c)) {
-                            ++j;
-                        }
+                    int style = rowView.getStyle(column);
+                    int nextIndex = rowView.getTextIndex(column + width);
+                    for (int i = rowView.getTextIndex(column); i < nextIndex;
+                            i += Character.charCount(Character.codePointAt(line, i))) {
+                        colors.append(style);
                     }
                 }
             }
-            if (!data.getLineWrap(row) && row < selY2 && row < mScreenRows - 1) {
+            if (!rowView.getLineWrap() && row < selY2 && row < mScreenRows - 1) {
                 builder.append('\n');
                 if (colors != null) {
                     colors.append((char) 0);
@@ -430,6 +572,30 @@ private String internalGetTranscriptText(GrowableIntArray colors, int selX1, int
         return builder.toString();
     }
 
+    /**
+     * Point a row view at a row of the screen or its transcript.
+     *
+     * @param row The row index to be viewed
+     * @param view The view to point at the row
+     * @return Whether the row exists
+     */
+    boolean getRow(int row, TranscriptRow view)
+    {
+        try
+        {
+            mData.getRow(row, view);
+            return true;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return false;
+        }
+        catch (NullPointerException e)
+        {
+            return false;
+        }
+    }
+
     public boolean fastResize(int columns, int rows, int[] cursor) {
         if (mData == null) {
             // XXX Trying to resize a finished TranscriptScreen?
@@ -444,12 +610,56 @@ public boolean fastResize(int columns, int rows, int[] cursor) {
         }
     }
 
+    /**
+     * Change how many rows of text are kept above the screen.  Text already
+     * in the transcript is kept, except for the oldest lines if there are
+     * now too many.
+     *
+     * @param rows The number of rows to keep in the transcript.
+     */
+    public void setTranscriptRows(int rows) {
+        mTotalRows = mScreenRows + rows;
+        if (mData != null) {
+            mData.setTotalRows(mTotalRows);
+        }
+    }
+
     public void resize(int columns, int rows, int style) {
         // Ensure backing store will be large enough to hold the whole screen 
         if (rows > mTotalRows) {
             mTotalRows = rows;
         }
+        TranscriptOverflow overflow = mData.detachOverflow();
+        int scrollbackLimit = mData.getScrollbackLimit();
+        mDemotedRows += mData.getDemotedRows();
+        init(columns, mTotalRows, rows, style);
+        mData.setOverflow(overflow);
+        mData.setScrollbackLimit(scrollbackLimit);
+    }
+
+    /**
+     * Resize the screen, rewrapping its text and the transcript's to the new
+     * width.  Rows in the overflow keep their width.
+     *
+     * @param cursor An int[2] containing the current cursor position
+     *               { col, row }, updated to its position after the resize,
+     *               or { -1, -1 } if the text at the cursor scrolled off the
+     *               screen.  May be null if the cursor doesn't matter, as on
+     *               the inactive screen; blank rows at the bottom of the
+     *               screen are then kept.
+     */
+    public void reflow(int columns, int rows, int[] cursor, int style) {
+        if (rows > mTotalRows) {
+            mTotalRows = rows;
+        }
+        UnicodeTranscript data = mData;
+        TranscriptOverflow overflow = data.detachOverflow();
+        mDemotedRows += data.getDemotedRows();
         init(columns, mTotalRows, rows, style);
+        mData.setOverflow(overflow);
+        data.reflowInto(mData, cursor, style);
+        // Only new lines count against the limit, not the rewrapped ones
+        mData.setScrollbackLimit(data.getScrollbackLimit());
     }
 
     /**
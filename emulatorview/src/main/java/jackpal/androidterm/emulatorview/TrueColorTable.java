@@ -0,0 +1,129 @@
+package jackpal.androidterm.emulatorview;
+
+/**
+ * A table of the 24-bit colors in use on a transcript.
+ *
+ * A packed text style only has room for a 9-bit color index -- see the
+ * TextStyle class.  Indices below TextStyle.ciTrueColorBase refer to the
+ * renderer's palette; the rest refer to entries in this table.  Colors set by
+ * SGR 38;2;r;g;b and 48;2;r;g;b are interned here, so that a style still
+ * fits in the three bytes per column StyleRow stores.
+ *
+ * The table is small.  Once it is full, interning a new color reuses the
+ * entry which was least recently interned, which changes the color of any
+ * text still using that entry.
+ *
+ * Colors are found in the table through an open-addressed hash table, with
+ * linear probing, from each color to its entry.
+ */
+final class TrueColorTable {
+    static final int SIZE = TextStyle.ciTrueColorCount;
+
+    /** The size of the hash table: a power of two, at least twice SIZE. */
+    private static final int HASH_SIZE = 512;
+
+    private final int[] mColors = new int[SIZE];
+    /* For each hash table position, the entry holding a color plus one, or
+       0 if the position is empty */
+    private final short[] mHash = new short[HASH_SIZE];
+    private final long[] mLastUsed = new long[SIZE];
+    private int mCount;
+    private long mClock;
+    private int mVersion;
+
+    /**
+     * Get the color index for a 24-bit color, adding it to the table if
+     * necessary.
+     *
+     * @param rgb The color, as 0xRRGGBB.
+     * @return The color index to use in a text style.
+     */
+    int intern(int rgb) {
+        int color = 0xff000000 | rgb;
+        int position = find(color);
+        int slot = mHash[position] - 1;
+
+        if (slot < 0) {
+            if (mCount < SIZE) {
+                slot = mCount++;
+            } else {
+                slot = leastRecentlyUsed();
+                remove(find(mColors[slot]));
+                position = find(color);
+            }
+            mColors[slot] = color;
+            mHash[position] = (short) (slot + 1);
+            mVersion++;
+        }
+        mLastUsed[slot] = ++mClock;
+        return TextStyle.ciTrueColorBase + slot;
+    }
+
+    private static int hash(int color) {
+        int h = color * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & (HASH_SIZE - 1);
+    }
+
+    /**
+     * Find the hash table position holding a color, or the empty position
+     * where it would go.
+     */
+    private int find(int color) {
+        short[] table = mHash;
+        int[] colors = mColors;
+        int position = hash(color);
+        while (table[position] != 0 && colors[table[position] - 1] != color) {
+            position = (position + 1) & (HASH_SIZE - 1);
+        }
+        return position;
+    }
+
+    /**
+     * Empty a hash table position, moving back the entries after it which
+     * would no longer be found past the gap.
+     */
+    private void remove(int position) {
+        short[] table = mHash;
+        int[] colors = mColors;
+        int next = position;
+        while (true) {
+            next = (next + 1) & (HASH_SIZE - 1);
+            int entry = table[next];
+            if (entry == 0) {
+                break;
+            }
+            int home = hash(colors[entry - 1]);
+            if (((next - home) & (HASH_SIZE - 1)) >= ((next - position) & (HASH_SIZE - 1))) {
+                table[position] = (short) entry;
+                position = next;
+            }
+        }
+        table[position] = 0;
+    }
+
+    private int leastRecentlyUsed() {
+        long[] lastUsed = mLastUsed;
+        int slot = 0;
+        for (int i = 1; i < SIZE; i++) {
+            if (lastUsed[i] < lastUsed[slot]) {
+                slot = i;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * A number which changes every time an entry in the table changes color.
+     */
+    int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Copy the table's colors into a palette, starting at
+     * TextStyle.ciTrueColorBase.
+     */
+    void copyColors(int[] palette) {
+        System.arraycopy(mColors, 0, palette, TextStyle.ciTrueColorBase, mCount);
+    }
+}
@@ -16,6 +16,21 @@
 
 package jackpal.androidterm.emulatorview;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
 import android.util.Log;
 
 import jackpal.androidterm.emulatorview.compat.AndroidCharacterCompat;
@@ -24,23 +39,58 @@
 /**
  * A backing store for a TranscriptScreen.
  *
- * The text is stored as a circular buffer of rows.  There are two types of
- * row:
+ * The text is stored as a circular buffer of rows.  There are three types
+ * of row:
+ * - "Latin-1", which is a byte[] array used to store lines which consist
+ *   entirely of regular-width characters below U+0100, as most shell output
+ *   does, at one byte per column;
  * - "basic", which is a char[] array used to store lines which consist
  *   entirely of regular-width characters (no combining characters, zero-width
  *   characters, East Asian double-width characters, etc.) in the BMP; and
- * - "full", which is a char[] array with extra trappings which can be used to
- *   store a line containing any valid Unicode sequence.  An array of short[]
- *   is used to store the "offset" at which each column starts; for example,
- *   if column 20 starts at index 23 in the array, then mOffset[20] = 3.
+ * - "full", a FullUnicodeLine, which can be used to store a line containing
+ *   any valid Unicode sequence.  It keeps one code point per column, so that
+ *   storing a character takes the same time however complex the line is,
+ *   and packs the line into a char[] array with an array of short[] offsets
+ *   at which each column starts when the line is read.
  *
  * Style information is stored in a separate circular buffer of StyleRows.
+ * Rows all in one style, which most rows are, share an immutable StyleRow
+ * for that style; a row gets a private StyleRow when one of its columns
+ * changes to a different style.
+ *
+ * The buffer itself starts out with room for about a screenful of rows, and
+ * grows BLOCK_ROWS rows at a time as the transcript fills, up to the total
+ * number of rows requested.  Until it reaches that size, rows are kept in
+ * order from the start of the buffer, so growing it never moves a row.
  *
  * Rows are allocated on demand, when a character is first stored into them.
- * A "basic" row is allocated unless the store which triggers the allocation
- * requires a "full" row.  "Basic" rows are converted to "full" rows when
- * needed.  There is no conversion in the other direction -- a "full" row
- * stays that way even if it contains only regular-width BMP characters.
+ * The narrowest type of row which can hold the character is allocated, and
+ * rows are converted to a wider type ("Latin-1" to "basic" to "full") when
+ * needed.  Latin-1 rows count as basic rows to callers: getLine() returns
+ * their text as a char[] array, and isBasicLine() is true for them.  On the
+ * screen, a "full" row stays that way even if it comes to contain only
+ * regular-width BMP characters, since it's likely to be written to again;
+ * when it scrolls into the transcript, it's converted back to the narrowest
+ * type of row which can hold its text.
+ *
+ * In a large transcript, rows far from the screen are compressed in blocks
+ * of BLOCK_ROWS rows (aligned on positions in the circular buffer) on a
+ * background thread.  Once a block's compressed copy is ready, its rows are
+ * dropped -- the block is "frozen".  Reading any of its rows "thaws" the
+ * block, decompressing it back into the buffer; the few most recently used
+ * thawed blocks are kept, and older ones frozen again.  Rows in the
+ * transcript never change, so a compressed copy stays good until the buffer
+ * wraps around and its rows are reused for the screen.
+ *
+ * Once the buffer is full, the storage of the rows which are dropped from it
+ * is kept in a small pool of spare rows and reused for new rows, so that
+ * steady scrolling allocates next to nothing.  A transcript's column count
+ * never changes, so every spare row has the right width.
+ *
+ * If the transcript has a TranscriptOverflow, rows which no longer fit in the
+ * buffer are moved to it instead of being discarded.  They stay part of the
+ * transcript, above the rows in the buffer: external rows below
+ * -mActiveTranscriptRows are read from the overflow.
  */
 class UnicodeTranscript {
     private static final String TAG = "UnicodeTranscript";
@@ -48,7 +98,9 @@ class UnicodeTranscript {
     private Object[] mLines;
     private StyleRow[] mColor;
     private boolean[] mLineWrap;
+    /* The number of rows allocated, and the most that may be */
     private int mTotalRows;
+    private int mMaxRows;
     private int mScreenRows;
     private int mColumns;
     private int mActiveTranscriptRows = 0;
@@ -59,16 +111,185 @@ class UnicodeTranscript {
     private char[] tmpLine;
     private StyleRow tmpColor;
 
+    /* Holding area for the lines scrolled off the top margin, if it isn't
+       the top of the screen */
+    private Object[] mScrollLines;
+    private StyleRow[] mScrollColor;
+    private boolean[] mScrollLineWrap;
+
+    /* How many of the lines scrolled into the transcript since the limit
+       was set are kept, or -1 if there is no limit */
+    private int mScrollbackLimit = -1;
+    /* How many lines have been kept under the limit; the newest of them are
+       the newest rows of the transcript */
+    private int mLimitedRows;
+
+    private static final int BLOCK_SHIFT = 8;
+    private static final int BLOCK_ROWS = 1 << BLOCK_SHIFT;
+    /** Rows this close to the top of the screen are never compressed. */
+    private static final int COLD_ROWS = 1024;
+    /** The number of thawed blocks kept before they're frozen again. */
+    private static final int THAWED_BLOCKS = 4;
+
+    /* The compressed copy of each block, or null; all null if the
+       transcript is too small for compression to be worth it */
+    private byte[][] mBlockData;
+    private boolean[] mBlockFrozen;
+    private boolean[] mBlockPending;
+    /* Changes whenever a block's rows may have changed, so that compressed
+       copies of the old rows aren't used */
+    private int[] mBlockGeneration;
+    private long[] mBlockLastUsed;
+    private long mBlockClock;
+    private int mThawedBlocks;
+    private int mRowsSinceColdCheck;
+    private ConcurrentLinkedQueue<CompressionJob> mCompressedBlocks;
+
+    private static ExecutorService sCompressor;
+
+    /* Where rows which no longer fit in the buffer go, or null */
+    private TranscriptOverflow mOverflow;
+
+    /** The most spare rows of each kind kept for reuse. */
+    private static final int SPARE_ROWS = 64;
+
+    /* Storage of rows dropped from the buffer, kept for reuse */
+    private final byte[][] mSpareLatin1Lines = new byte[SPARE_ROWS][];
+    private int mSpareLatin1Count;
+    private final char[][] mSpareBasicLines = new char[SPARE_ROWS][];
+    private int mSpareBasicCount;
+    private final FullUnicodeLine[] mSpareFullLines = new FullUnicodeLine[SPARE_ROWS];
+    private int mSpareFullCount;
+    private final StyleRow[] mSpareColors = new StyleRow[SPARE_ROWS];
+    private int mSpareColorCount;
+
+    /* The number of full rows converted back to basic rows */
+    private long mDemotedRows;
+
+    /** The number of shared solid style rows kept; a power of two. */
+    private static final int SOLID_ROWS = 16;
+
+    /* Shared solid style rows, looked up by a hash of their style */
+    private final StyleRow[] mSolidColors = new StyleRow[SOLID_ROWS];
+
+    /**
+     * @param totalRows The most rows to keep, including the screen.  Storage
+     *        for them is only allocated as the transcript fills.
+     */
     public UnicodeTranscript(int columns, int totalRows, int screenRows, int defaultStyle) {
         mColumns = columns;
-        mTotalRows = totalRows;
+        mMaxRows = totalRows;
         mScreenRows = screenRows;
-        mLines = new Object[totalRows];
-        mColor = new StyleRow[totalRows];
-        mLineWrap = new boolean[totalRows];
         tmpColor = new StyleRow(defaultStyle, mColumns);
 
         mDefaultStyle = defaultStyle;
+
+        allocateRows(Math.min(totalRows, roundUpToBlock(screenRows)));
+    }
+
+    private static int roundUpToBlock(int rows) {
+        return (rows + BLOCK_ROWS - 1) & ~(BLOCK_ROWS - 1);
+    }
+
+    /**
+     * Replace the buffer with an empty one with room for the given number
+     * of rows.
+     */
+    private void allocateRows(int rows) {
+        mTotalRows = rows;
+        mLines = new Object[rows];
+        mColor = new StyleRow[rows];
+        mLineWrap = new boolean[rows];
+
+        if (mMaxRows >= COLD_ROWS + 2 * BLOCK_ROWS) {
+            int blocks = roundUpToBlock(rows) >> BLOCK_SHIFT;
+            mBlockData = new byte[blocks][];
+            mBlockFrozen = new boolean[blocks];
+            mBlockPending = new boolean[blocks];
+            mBlockGeneration = new int[blocks];
+            mBlockLastUsed = new long[blocks];
+            mCompressedBlocks = new ConcurrentLinkedQueue<CompressionJob>();
+        } else {
+            mBlockData = null;
+            mBlockFrozen = null;
+            mBlockPending = null;
+            mBlockGeneration = null;
+            mBlockLastUsed = null;
+            mCompressedBlocks = null;
+        }
+        mThawedBlocks = 0;
+        mRowsSinceColdCheck = 0;
+    }
+
+    /**
+     * Grow the buffer, if it may still grow, so that it holds at least the
+     * given number of rows from its start.  Only done while the rows are in
+     * order from the start of the buffer, so no row has to move.
+     */
+    private void ensureRows(int rows) {
+        int totalRows = mTotalRows;
+        if (rows <= totalRows || totalRows == mMaxRows
+                || mScreenFirstRow < mActiveTranscriptRows
+                || mScreenFirstRow + mScreenRows > totalRows) {
+            return;
+        }
+
+        int newRows = roundUpToBlock(Math.max(rows, totalRows + totalRows / 2));
+        newRows = Math.min(newRows, mMaxRows);
+        if (mBlockData != null && (totalRows & (BLOCK_ROWS - 1)) != 0) {
+            // The last block is about to get more rows
+            discardBlock(totalRows >> BLOCK_SHIFT);
+        }
+
+        mTotalRows = newRows;
+        mLines = Arrays.copyOf(mLines, newRows);
+        mColor = Arrays.copyOf(mColor, newRows);
+        mLineWrap = Arrays.copyOf(mLineWrap, newRows);
+        if (mBlockData != null) {
+            int blocks = roundUpToBlock(newRows) >> BLOCK_SHIFT;
+            mBlockData = Arrays.copyOf(mBlockData, blocks);
+            mBlockFrozen = Arrays.copyOf(mBlockFrozen, blocks);
+            mBlockPending = Arrays.copyOf(mBlockPending, blocks);
+            mBlockGeneration = Arrays.copyOf(mBlockGeneration, blocks);
+            mBlockLastUsed = Arrays.copyOf(mBlockLastUsed, blocks);
+        }
+    }
+
+    /**
+     * Change the most rows to keep, including the screen.  If the transcript
+     * holds more rows than that, the oldest are dropped; otherwise all the
+     * text is kept.
+     */
+    public void setTotalRows(int totalRows) {
+        totalRows = Math.max(totalRows, mScreenRows);
+        if (totalRows == mMaxRows) {
+            return;
+        }
+
+        // Make sure every row is in the buffer before copying it
+        discardCompressedBlocks();
+
+        int screenRows = mScreenRows;
+        int activeTranscriptRows = Math.min(mActiveTranscriptRows,
+                totalRows - screenRows);
+        evictRows(mActiveTranscriptRows - activeTranscriptRows);
+        int rows = activeTranscriptRows + screenRows;
+        int firstRow = externalToInternalRow(-activeTranscriptRows);
+        int oldTotalRows = mTotalRows;
+        Object[] lines = mLines;
+        StyleRow[] color = mColor;
+        boolean[] lineWrap = mLineWrap;
+
+        mMaxRows = totalRows;
+        allocateRows(Math.min(totalRows, roundUpToBlock(rows)));
+        for (int i = 0; i < rows; ++i) {
+            int index = (firstRow + i) % oldTotalRows;
+            mLines[i] = lines[index];
+            mColor[i] = color[index];
+            mLineWrap[i] = lineWrap[index];
+        }
+        mScreenFirstRow = activeTranscriptRows;
+        mActiveTranscriptRows = activeTranscriptRows;
     }
 
     public void setDefaultStyle(int defaultStyle) {
@@ -79,12 +300,252 @@ public int getDefaultStyle() {
         return mDefaultStyle;
     }
 
+    /**
+     * Limit how many of the lines scrolled into the transcript from now on
+     * are kept.  Once there are more, the oldest of them are discarded,
+     * leaving the most recent lines and the lines which were in the
+     * transcript before alone.  To save moving rows on every scroll, they're
+     * discarded in batches, so up to a quarter more lines may be kept.
+     *
+     * @param lines The number of lines, or -1 to remove the limit.
+     */
+    public void setScrollbackLimit(int lines) {
+        mScrollbackLimit = lines;
+        mLimitedRows = 0;
+    }
+
+    /**
+     * Get the limit on how many lines scrolled into the transcript are
+     * kept, or -1 if there's no limit.
+     */
+    public int getScrollbackLimit() {
+        return mScrollbackLimit;
+    }
+
+    /**
+     * Keep the rows which no longer fit in the buffer in an overflow file,
+     * replacing any overflow the transcript already had.
+     *
+     * @param overflow The overflow, or null to discard the rows instead.
+     */
+    public void setOverflow(TranscriptOverflow overflow) {
+        if (mOverflow != null && mOverflow != overflow) {
+            mOverflow.close();
+        }
+        mOverflow = overflow;
+    }
+
+    /**
+     * Stop using the overflow without closing it, so that another
+     * transcript can take it over.
+     */
+    TranscriptOverflow detachOverflow() {
+        TranscriptOverflow overflow = mOverflow;
+        mOverflow = null;
+        return overflow;
+    }
+
+    /**
+     * The number of rows in the overflow, all of them above the rows in the
+     * buffer.
+     */
+    public int getOverflowRows() {
+        return mOverflow == null ? 0 : mOverflow.getRows();
+    }
+
+    /**
+     * The number of rows above the screen, including those in the overflow.
+     */
     public int getActiveTranscriptRows() {
-        return mActiveTranscriptRows;
+        return mActiveTranscriptRows + getOverflowRows();
     }
 
     public int getActiveRows() {
-        return mActiveTranscriptRows + mScreenRows;
+        return getActiveTranscriptRows() + mScreenRows;
+    }
+
+    /**
+     * Drop count rows from the buffer, starting with the oldest: move them
+     * to the overflow, if there is one, and keep their storage for reuse.
+     * The rows must not be frozen.
+     */
+    private void evictRows(int count) {
+        if (count <= 0) {
+            return;
+        }
+        TranscriptOverflow overflow = mOverflow;
+        int totalRows = mTotalRows;
+        int columns = mColumns;
+        int first = externalToInternalRow(-mActiveTranscriptRows);
+        for (int i = 0; i < count; ++i) {
+            int index = (first + i) % totalRows;
+            if (overflow != null) {
+                overflow.append(mLines[index], mColor[index], mLineWrap[index],
+                        columns);
+            }
+            recycleRow(index);
+        }
+    }
+
+    /**
+     * Keep the storage of a row which is being dropped for reuse, leaving
+     * the row unallocated.  Rows which the compressor may still be reading
+     * are left alone.
+     */
+    private void recycleRow(int index) {
+        if (mBlockPending != null && mBlockPending[index >> BLOCK_SHIFT]) {
+            return;
+        }
+        Object line = mLines[index];
+        if (line instanceof byte[]) {
+            recycleLatin1Line((byte[]) line);
+        } else if (line instanceof char[]) {
+            recycleBasicLine((char[]) line);
+        } else if (line != null && mSpareFullCount < SPARE_ROWS) {
+            mSpareFullLines[mSpareFullCount++] = (FullUnicodeLine) line;
+        }
+        StyleRow color = mColor[index];
+        if (color != null && !color.isShared() && mSpareColorCount < SPARE_ROWS) {
+            mSpareColors[mSpareColorCount++] = color;
+        }
+        mLines[index] = null;
+        mColor[index] = null;
+    }
+
+    private void recycleLatin1Line(byte[] line) {
+        if (mSpareLatin1Count < SPARE_ROWS) {
+            mSpareLatin1Lines[mSpareLatin1Count++] = line;
+        }
+    }
+
+    private void recycleBasicLine(char[] line) {
+        if (mSpareBasicCount < SPARE_ROWS) {
+            mSpareBasicLines[mSpareBasicCount++] = line;
+        }
+    }
+
+    /**
+     * Get a Latin-1 line filled with blanks, reusing a spare one if
+     * possible.
+     */
+    private byte[] obtainLatin1Line() {
+        byte[] line;
+        if (mSpareLatin1Count > 0) {
+            line = mSpareLatin1Lines[--mSpareLatin1Count];
+            mSpareLatin1Lines[mSpareLatin1Count] = null;
+        } else {
+            line = new byte[mColumns];
+        }
+        Arrays.fill(line, (byte) ' ');
+        return line;
+    }
+
+    /**
+     * Get a basic line filled with blanks, reusing a spare one if possible.
+     */
+    private char[] obtainBasicLine() {
+        char[] line;
+        if (mSpareBasicCount > 0) {
+            line = mSpareBasicLines[--mSpareBasicCount];
+            mSpareBasicLines[mSpareBasicCount] = null;
+        } else {
+            line = new char[mColumns];
+        }
+        Arrays.fill(line, ' ');
+        return line;
+    }
+
+    /**
+     * Get a full line holding the text of a basic line, or blanks if
+     * basicLine is null, reusing a spare one if possible.
+     */
+    private FullUnicodeLine obtainFullLine(char[] basicLine) {
+        if (mSpareFullCount == 0) {
+            return basicLine == null ? new FullUnicodeLine(mColumns)
+                    : new FullUnicodeLine(basicLine);
+        }
+        FullUnicodeLine line = mSpareFullLines[--mSpareFullCount];
+        mSpareFullLines[mSpareFullCount] = null;
+        line.reset(basicLine);
+        return line;
+    }
+
+    /**
+     * Get a row of styles all in the given style, reusing a spare one if
+     * possible.
+     */
+    private StyleRow obtainStyleRow(int style) {
+        if (mSpareColorCount == 0) {
+            return new StyleRow(style, mColumns);
+        }
+        StyleRow color = mSpareColors[--mSpareColorCount];
+        mSpareColors[mSpareColorCount] = null;
+        color.reset(style);
+        return color;
+    }
+
+    /**
+     * Get the shared row of styles all in the given style.
+     */
+    private StyleRow solidStyleRow(int style) {
+        int slot = (style ^ (style >>> 9) ^ (style >>> 18)) & (SOLID_ROWS - 1);
+        StyleRow color = mSolidColors[slot];
+        if (color == null || color.getSolidStyle() != style) {
+            color = mSolidColors[slot] = StyleRow.newShared(style, mColumns);
+        }
+        return color;
+    }
+
+    /**
+     * Get a row's styles for changing, first giving the row a private copy
+     * if it uses a shared row.
+     */
+    private StyleRow writableColor(int row) {
+        StyleRow color = mColor[row];
+        if (color.isShared()) {
+            color = mColor[row] = obtainStyleRow(color.getSolidStyle());
+        }
+        return color;
+    }
+
+    /**
+     * Set the style of count columns of a row, starting at column.
+     */
+    private void setStyle(int row, int column, int count, int style) {
+        StyleRow color = mColor[row];
+        if (color.isShared()) {
+            if (color.getSolidStyle() == style) {
+                return;
+            }
+            color = writableColor(row);
+        }
+        color.set(column, count, style);
+    }
+
+    /**
+     * Copy w columns of styles from one row to another.
+     */
+    private void copyStyles(int srcRow, int sx, int dstRow, int dx, int w) {
+        StyleRow color = mColor[srcRow];
+        if (color.isShared() && color == mColor[dstRow]) {
+            // Both rows are already all in the same style
+            return;
+        }
+        color.copy(sx, writableColor(dstRow), dx, w);
+    }
+
+    /**
+     * If an external row is in the overflow, read it in and return true.
+     * The row's contents are then available from the overflow.
+     */
+    private boolean readOverflowRow(int row) {
+        if (row >= -mActiveTranscriptRows) {
+            return false;
+        }
+        TranscriptOverflow overflow = mOverflow;
+        overflow.read(overflow.getRows() + mActiveTranscriptRows + row,
+                mColumns);
+        return true;
     }
 
     /**
@@ -126,6 +587,9 @@ public void setLineWrap(int row) {
     }
 
     public boolean getLineWrap(int row) {
+        if (readOverflowRow(row)) {
+            return mOverflow.getLineWrap();
+        }
         return mLineWrap[externalToInternalRow(row)];
     }
 
@@ -144,7 +608,11 @@ public boolean getLineWrap(int row) {
      *         and placing it into a new transcript of the correct size.
      */
     public boolean resize(int newColumns, int newRows, int[] cursor) {
-        if (newColumns != mColumns || newRows > mTotalRows) {
+        if (newColumns != mColumns || newRows > mMaxRows) {
+            return false;
+        }
+        ensureRows(mScreenFirstRow + newRows);
+        if (newRows > mTotalRows) {
             return false;
         }
 
@@ -158,7 +626,9 @@ public boolean resize(int newColumns, int newRows, int[] cursor) {
             boolean[] lineWrap = mLineWrap;
             int screenFirstRow = mScreenFirstRow;
             int totalRows = mTotalRows;
-            for (int i = 0; i < activeTranscriptRows - shift; ++i) {
+            discardRows((screenFirstRow + screenRows) % totalRows,
+                    -shift - activeTranscriptRows);
+            for (int i = 0; i < -shift - activeTranscriptRows; ++i) {
                 int index = (screenFirstRow + screenRows + i) % totalRows;
                 lines[index] = null;
                 color[index] = null;
@@ -182,7 +652,9 @@ public boolean resize(int newColumns, int newRows, int[] cursor) {
                 }
 
                 char[] line;
-                if (lines[index] instanceof char[]) {
+                if (lines[index] instanceof byte[]) {
+                    line = getLine(i);
+                } else if (lines[index] instanceof char[]) {
                     line = (char[]) lines[index];
                 } else {
                     line = ((FullUnicodeLine) lines[index]).getLine();
@@ -216,6 +688,14 @@ public boolean resize(int newColumns, int newRows, int[] cursor) {
             }
         }
 
+        /* Only the rows moving between the screen and the transcript can be
+           written differently from now on; blocks further up stay frozen */
+        if (shift > 0) {
+            discardRows(mScreenFirstRow, shift);
+        } else if (shift < 0) {
+            discardRows((mTotalRows + mScreenFirstRow + shift) % mTotalRows, -shift);
+        }
+
         if (shift > 0 || (shift < 0 && mScreenFirstRow >= -shift)) {
             // All we're doing is moving the top of the screen.
             mScreenFirstRow = (mScreenFirstRow + shift) % mTotalRows;
@@ -237,6 +717,224 @@ public boolean resize(int newColumns, int newRows, int[] cursor) {
         return true;
     }
 
+    /**
+     * Rewrap the text in the buffer for a transcript of a different width,
+     * leaving it as writing the text to that transcript from its top left
+     * corner would.  Each run of rows joined by line wraps is split into rows
+     * of the new width, with the blanks at its end dropped.  The text and
+     * styles are copied from row to row, without going through the text of
+     * the whole transcript.  Rows in the overflow keep their width, and
+     * aren't copied.
+     *
+     * @param dst A new, empty transcript to hold the text.
+     * @param cursor An int[2] containing the cursor position { col, row }.
+     *        It's updated to where the character under the cursor went, or
+     *        { -1, -1 } if that scrolled off dst's screen.  Rows after the
+     *        cursor's which hold nothing are dropped.  If cursor is null,
+     *        every row of the screen is kept.
+     * @param style The style for the rows dst exposes as it scrolls.
+     */
+    void reflowInto(UnicodeTranscript dst, int[] cursor, int style) {
+        int columns = mColumns;
+        int newColumns = dst.mColumns;
+        int newScreenRows = dst.mScreenRows;
+
+        int cursorCol = -1;
+        int cursorRow = mScreenRows;
+        int lastRow = mScreenRows - 1;
+        if (cursor != null) {
+            cursorCol = cursor[0];
+            cursorRow = cursor[1];
+            while (lastRow > cursorRow
+                    && getReflowLength(externalToInternalRow(lastRow)) == 0) {
+                --lastRow;
+            }
+        }
+
+        int newCursorRow = -1;
+        int newCursorCol = -1;
+        int outRows = 1;
+        int y = 0;
+        int x = 0;
+        for (int row = -mActiveTranscriptRows; row <= lastRow; ++row) {
+            int index = externalToInternalRow(row);
+            thawRow(index);
+            Object line = mLines[index];
+            FullUnicodeLine fullLine = null;
+            if (line instanceof FullUnicodeLine) {
+                fullLine = (FullUnicodeLine) line;
+            }
+            int length = getReflowLength(index);
+            if (row == cursorRow && length <= cursorCol) {
+                // Keep the blanks up to the cursor
+                length = cursorCol + 1;
+                if (fullLine != null && length < columns
+                        && fullLine.isWideContinuation(length)) {
+                    ++length;
+                }
+            }
+
+            int sx = 0;
+            while (sx < length) {
+                int n = Math.min(length - sx, newColumns - x);
+                if (n > 0 && fullLine != null && sx + n < columns
+                        && fullLine.isWideContinuation(sx + n)) {
+                    // Move an East Asian wide character to the next row whole
+                    --n;
+                    if (n == 0 && x == 0) {
+                        // Too wide for any row -- copyCells() leaves a space
+                        n = 1;
+                    }
+                }
+                if (n == 0) {
+                    dst.mLineWrap[dst.externalToInternalRow(y)] = true;
+                    y = dst.nextReflowRow(outRows++, style);
+                    x = 0;
+                    continue;
+                }
+
+                int dstRow = dst.externalToInternalRow(y);
+                dst.copyRowText(line, sx, dstRow, x, n);
+                StyleRow color = mColor[index];
+                if (color == null || color.isShared()) {
+                    int rowStyle = color == null ? mDefaultStyle : color.getSolidStyle();
+                    dst.setStyle(dstRow, x, n, rowStyle);
+                } else {
+                    color.copy(sx, dst.writableColor(dstRow), x, n);
+                }
+                if (row == cursorRow && cursorCol >= sx && cursorCol < sx + n) {
+                    newCursorRow = outRows - 1;
+                    newCursorCol = x + cursorCol - sx;
+                }
+                sx += n;
+                x += n;
+            }
+
+            if (!mLineWrap[index] && row < lastRow) {
+                y = dst.nextReflowRow(outRows++, style);
+                x = 0;
+            }
+        }
+
+        if (cursor != null) {
+            newCursorRow -= Math.max(0, outRows - newScreenRows);
+            if (newCursorRow >= 0) {
+                cursor[0] = newCursorCol;
+                cursor[1] = newCursorRow;
+            } else {
+                cursor[0] = -1;
+                cursor[1] = -1;
+            }
+        }
+    }
+
+    /**
+     * The number of columns of a row kept by a reflow: up to the last one
+     * which isn't a blank in the default style, or the whole row if it's
+     * wrapped and isn't entirely blank.
+     */
+    private int getReflowLength(int index) {
+        thawRow(index);
+        Object line = mLines[index];
+        if (line == null) {
+            return 0;
+        }
+        StyleRow color = mColor[index];
+        int defaultStyle = mDefaultStyle;
+        int length = mColumns;
+        while (length > 0 && isBlank(line, length - 1)
+                && (color == null || color.get(length - 1) == defaultStyle)) {
+            --length;
+        }
+        if (length > 0 && mLineWrap[index]) {
+            // Trailing blanks of a wrapped row are part of the text
+            length = mColumns;
+        }
+        return length;
+    }
+
+    private static boolean isBlank(Object line, int column) {
+        if (line instanceof byte[]) {
+            return ((byte[]) line)[column] == ' ';
+        } else if (line instanceof char[]) {
+            return ((char[]) line)[column] == ' ';
+        } else {
+            return ((FullUnicodeLine) line).isBlank(column);
+        }
+    }
+
+    /**
+     * Start row number rows of the text being written by a reflow, scrolling
+     * the screen once it's full.
+     *
+     * @return The screen row to write the new row to.
+     */
+    private int nextReflowRow(int rows, int style) {
+        if (rows < mScreenRows) {
+            return rows;
+        }
+        scroll(0, mScreenRows, 1, style);
+        return mScreenRows - 1;
+    }
+
+    /**
+     * Copy w columns of text from a row of any transcript into one of this
+     * transcript's rows, or another place in the same row, widening the row
+     * if it can't hold the text.  Full rows are copied a cell at a time,
+     * without unpacking their text.
+     *
+     * @param src The text of the row to copy from, or null if it's blank.
+     *        Nothing is copied from a blank row, so the columns being copied
+     *        to must be blank already.
+     */
+    private void copyRowText(Object src, int sx, int dstRow, int dx, int w) {
+        if (src == null) {
+            return;
+        }
+        if (mLines[dstRow] == null) {
+            if (src instanceof byte[]) {
+                allocateLatin1Line(dstRow);
+            } else if (src instanceof char[]) {
+                allocateBasicLine(dstRow);
+            } else {
+                allocateFullLine(dstRow);
+            }
+        }
+        if (src instanceof FullUnicodeLine) {
+            if (mLines[dstRow] instanceof byte[]) {
+                widenLine(dstRow);
+            }
+            if (mLines[dstRow] instanceof char[]) {
+                char[] basicLine = (char[]) mLines[dstRow];
+                mLines[dstRow] = obtainFullLine(basicLine);
+                recycleBasicLine(basicLine);
+            }
+            ((FullUnicodeLine) src).copyCells(sx, (FullUnicodeLine) mLines[dstRow], dx, w);
+            return;
+        }
+        if (src instanceof char[] && mLines[dstRow] instanceof byte[]) {
+            widenLine(dstRow);
+        }
+
+        Object dst = mLines[dstRow];
+        if (src instanceof byte[] && dst instanceof char[]) {
+            byte[] srcLine = (byte[]) src;
+            char[] dstLine = (char[]) dst;
+            for (int i = 0; i < w; ++i) {
+                dstLine[dx + i] = (char) (srcLine[sx + i] & 0xff);
+            }
+        } else if (dst instanceof FullUnicodeLine) {
+            FullUnicodeLine dstLine = (FullUnicodeLine) dst;
+            for (int i = 0; i < w; ++i) {
+                int c = src instanceof byte[] ? ((byte[]) src)[sx + i] & 0xff
+                        : ((char[]) src)[sx + i];
+                dstLine.setChar(dx + i, c);
+            }
+        } else {
+            System.arraycopy(src, sx, dst, dx, w);
+        }
+    }
+
     /**
      * Block copy lines and associated metadata from one location to another
      * in the circular buffer, taking wraparound into account.
@@ -289,6 +987,21 @@ private void blockCopyLines(int src, int len, int shift) {
      * @param style the style for the newly exposed line.
      */
     public void scroll(int topMargin, int bottomMargin, int style) {
+        scroll(topMargin, bottomMargin, 1, style);
+    }
+
+    /**
+     * Scroll the screen down count lines.  The lines scrolled off the top
+     * margin go into the transcript in order, exactly as if scroll() had been
+     * called count times, but the rows are only moved once.
+     *
+     * @param topMargin First line that is scrolled.
+     * @param bottomMargin One line after the last line that is scrolled.
+     * @param count The number of lines to scroll; must be between 1 and
+     *        bottomMargin - topMargin.
+     * @param style the style for the newly exposed lines.
+     */
+    public void scroll(int topMargin, int bottomMargin, int count, int style) {
         // Separate out reasons so that stack crawls help us
         // figure out which condition was violated.
         if (topMargin > bottomMargin - 1) {
@@ -299,61 +1012,592 @@ public void scroll(int topMargin, int bottomMargin, int style) {
             throw new IllegalArgumentException();
         }
 
-        if (bottomMargin > mScreenRows) {
+        if (bottomMargin > mScreenRows) {
+            throw new IllegalArgumentException();
+        }
+
+        if (count < 1 || count > bottomMargin - topMargin) {
+            throw new IllegalArgumentException();
+        }
+
+        int screenRows = mScreenRows;
+        int totalRows = mTotalRows;
+
+        int limit = mScrollbackLimit;
+        if (limit >= 0) {
+            // Make room for the new lines among the lines kept under the limit
+            int limited = Math.min(mLimitedRows, mActiveTranscriptRows);
+            if (count > limit) {
+                // Lines which wouldn't be kept anyway skip the transcript
+                scrollInPlace(topMargin, bottomMargin, count - limit, style);
+                dropTranscriptRows(-limited, limited);
+                limited = 0;
+                count = limit;
+                if (count == 0) {
+                    mLimitedRows = 0;
+                    return;
+                }
+            } else if (limited + count > limit + limit / 4) {
+                int drop = limited + count - limit;
+                dropTranscriptRows(-limited, drop);
+                limited -= drop;
+            }
+            mLimitedRows = limited + count;
+        }
+
+        ensureRows(mScreenFirstRow + screenRows + count);
+        totalRows = mTotalRows;
+
+        // The rows below the screen are about to be reused
+        discardRows((mScreenFirstRow + screenRows) % totalRows,
+                Math.min(count, totalRows - screenRows));
+
+        if (topMargin == 0 && bottomMargin == screenRows) {
+            // Fast path -- scroll the entire screen
+            evictRows(mActiveTranscriptRows + count - (totalRows - screenRows));
+            mScreenFirstRow = (mScreenFirstRow + count) % totalRows;
+            mActiveTranscriptRows = Math.min(mActiveTranscriptRows + count,
+                    totalRows - screenRows);
+
+            // Blank the bottom margin
+            blankLines(bottomMargin - count, count, style);
+
+            rowsScrolled(count);
+            return;
+        }
+
+        if (totalRows - screenRows < count) {
+            /* There's no room in the transcript for the scrolled lines (as in
+               the alternate screen buffer) */
+            scrollInPlace(topMargin, bottomMargin, count, style);
+            return;
+        }
+
+        // The oldest rows are about to be reused if the transcript is full
+        evictRows(mActiveTranscriptRows + count - (totalRows - screenRows));
+
+        int screenFirstRow = mScreenFirstRow;
+        int topMarginInt = externalToInternalRow(topMargin);
+        int bottomMarginInt = externalToInternalRow(bottomMargin);
+
+        /* Save the scrolled lines, move the lines above them on the screen
+           down, move the lines on screen below the bottom margin down, then
+           insert the scrolled lines into the transcript */
+        Object[] lines = mLines;
+        StyleRow[] color = mColor;
+        boolean[] lineWrap = mLineWrap;
+        Object[] scrollLines = mScrollLines;
+        StyleRow[] scrollColor = mScrollColor;
+        boolean[] scrollLineWrap = mScrollLineWrap;
+        if (scrollLines == null || scrollLines.length < count) {
+            scrollLines = mScrollLines = new Object[screenRows];
+            scrollColor = mScrollColor = new StyleRow[screenRows];
+            scrollLineWrap = mScrollLineWrap = new boolean[screenRows];
+        }
+        for (int i = 0; i < count; ++i) {
+            int index = (topMarginInt + i) % totalRows;
+            scrollLines[i] = lines[index];
+            scrollColor[i] = color[index];
+            scrollLineWrap[i] = lineWrap[index];
+        }
+        blockCopyLines(screenFirstRow, topMargin, count);
+        blockCopyLines(bottomMarginInt, screenRows - bottomMargin, count);
+        for (int i = 0; i < count; ++i) {
+            int index = (screenFirstRow + i) % totalRows;
+            lines[index] = scrollLines[i];
+            color[index] = scrollColor[i];
+            lineWrap[index] = scrollLineWrap[i];
+            scrollLines[i] = null;
+            scrollColor[i] = null;
+        }
+
+        // Update the screen location
+        mScreenFirstRow = (screenFirstRow + count) % totalRows;
+        mActiveTranscriptRows = Math.min(mActiveTranscriptRows + count,
+                totalRows - screenRows);
+
+        // Blank the bottom margin
+        blankLines(bottomMargin - count, count, style);
+
+        rowsScrolled(count);
+    }
+
+    /**
+     * Convert those of the newest count transcript rows which are full rows
+     * holding only regular-width BMP characters to Latin-1 or basic rows.
+     */
+    private void demoteRows(int count) {
+        count = Math.min(count, mActiveTranscriptRows);
+        Object[] lines = mLines;
+        for (int row = -count; row < 0; ++row) {
+            int index = externalToInternalRow(row);
+            if (!(lines[index] instanceof FullUnicodeLine)
+                    || (mBlockPending != null && mBlockPending[index >> BLOCK_SHIFT])) {
+                continue;
+            }
+            FullUnicodeLine line = (FullUnicodeLine) lines[index];
+            int maxCodePoint = line.getMaxBasicChar();
+            if (maxCodePoint < 0) {
+                continue;
+            } else if (maxCodePoint < 0x100) {
+                byte[] latin1Line = obtainLatin1Line();
+                line.getLatin1Line(latin1Line);
+                lines[index] = latin1Line;
+            } else {
+                char[] basicLine = obtainBasicLine();
+                line.getBasicLine(basicLine);
+                lines[index] = basicLine;
+            }
+            if (mSpareFullCount < SPARE_ROWS) {
+                mSpareFullLines[mSpareFullCount++] = line;
+            }
+            ++mDemotedRows;
+        }
+    }
+
+    /**
+     * Get the number of full rows which have been converted back to Latin-1
+     * or basic rows after scrolling into the transcript.
+     */
+    public long getDemotedRows() {
+        return mDemotedRows;
+    }
+
+    /**
+     * Called after rows have been scrolled into the transcript.  Demote the
+     * new transcript rows which no longer need to be full rows, and every so
+     * often, pick up the blocks which have finished compressing and start
+     * compressing the ones which have become cold since.
+     */
+    private void rowsScrolled(int count) {
+        demoteRows(count);
+        if (mBlockData == null) {
+            return;
+        }
+        mRowsSinceColdCheck += count;
+        if (mRowsSinceColdCheck < BLOCK_ROWS / 4) {
+            return;
+        }
+        mRowsSinceColdCheck = 0;
+
+        CompressionJob job;
+        while ((job = mCompressedBlocks.poll()) != null) {
+            freezeBlock(job);
+        }
+
+        for (int block = 0; block < mBlockData.length; ++block) {
+            if (mBlockData[block] == null && !mBlockPending[block]
+                    && isColdBlock(block)) {
+                mBlockPending[block] = true;
+                getCompressor().execute(new CompressionJob(this, block));
+            }
+        }
+    }
+
+    /**
+     * Whether all of a block's rows are in the transcript, at least
+     * COLD_ROWS rows above the screen.
+     */
+    private boolean isColdBlock(int block) {
+        int first = block << BLOCK_SHIFT;
+        int last = Math.min(first + BLOCK_ROWS, mTotalRows) - 1;
+        int firstRow = internalToExternalRow(first);
+        int lastRow = internalToExternalRow(last);
+        return firstRow <= lastRow && firstRow >= -mActiveTranscriptRows
+                && lastRow < -COLD_ROWS;
+    }
+
+    private int internalToExternalRow(int row) {
+        int extRow = (row - mScreenFirstRow + mTotalRows) % mTotalRows;
+        if (extRow >= mScreenRows) {
+            extRow -= mTotalRows;
+        }
+        return extRow;
+    }
+
+    private static synchronized ExecutorService getCompressor() {
+        if (sCompressor == null) {
+            sCompressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "UnicodeTranscript compressor");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return sCompressor;
+    }
+
+    /**
+     * Compresses a block's rows on the compressor thread.  The rows are
+     * collected when the job is created; since rows in the transcript never
+     * change, they can be read safely from the other thread.
+     */
+    private static final class CompressionJob implements Runnable {
+        private final ConcurrentLinkedQueue<CompressionJob> mDone;
+        final int mBlock;
+        final int mGeneration;
+        final Object[] mLines;
+        final StyleRow[] mColor;
+        byte[] mData;
+
+        CompressionJob(UnicodeTranscript transcript, int block) {
+            int first = block << BLOCK_SHIFT;
+            int count = Math.min(BLOCK_ROWS, transcript.mTotalRows - first);
+            mDone = transcript.mCompressedBlocks;
+            mBlock = block;
+            mGeneration = transcript.mBlockGeneration[block];
+            mLines = new Object[count];
+            mColor = new StyleRow[count];
+            System.arraycopy(transcript.mLines, first, mLines, 0, count);
+            System.arraycopy(transcript.mColor, first, mColor, 0, count);
+        }
+
+        public void run() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                DataOutputStream out = new DataOutputStream(
+                        new DeflaterOutputStream(bytes, deflater));
+                for (int i = 0; i < mLines.length; ++i) {
+                    writeRow(out, mLines[i], mColor[i]);
+                }
+                out.close();
+                mData = bytes.toByteArray();
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't compress transcript rows", e);
+            } finally {
+                deflater.end();
+            }
+            mDone.add(this);
+        }
+    }
+
+    /* How writeRow() stores a row's text */
+    private static final int ROW_BLANK = 0;
+    private static final int ROW_BASIC = 1;
+    private static final int ROW_FULL = 2;
+    private static final int ROW_LATIN1 = 3;
+
+    /**
+     * Write a row's text and styles in the form readLine() and readColor()
+     * expect.  Trailing blanks in Latin-1 and basic rows aren't stored.
+     */
+    static void writeRow(DataOutputStream out, Object line, StyleRow color)
+            throws IOException {
+        if (line == null) {
+            out.writeByte(ROW_BLANK);
+        } else if (line instanceof byte[]) {
+            byte[] latin1Line = (byte[]) line;
+            int length = latin1Line.length;
+            while (length > 0 && latin1Line[length - 1] == ' ') {
+                --length;
+            }
+            out.writeByte(ROW_LATIN1);
+            out.writeShort(length);
+            out.write(latin1Line, 0, length);
+        } else if (line instanceof char[]) {
+            char[] basicLine = (char[]) line;
+            int length = basicLine.length;
+            while (length > 0 && basicLine[length - 1] == ' ') {
+                --length;
+            }
+            out.writeByte(ROW_BASIC);
+            out.writeUTF(new String(basicLine, 0, length));
+        } else {
+            out.writeByte(ROW_FULL);
+            ((FullUnicodeLine) line).writeTo(out);
+        }
+        if (color == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            color.writeTo(out);
+        }
+    }
+
+    /**
+     * Read the text of a row written by writeRow().
+     */
+    static Object readLine(DataInputStream in, int columns) throws IOException {
+        int type = in.readByte();
+        if (type == ROW_BLANK) {
+            return null;
+        } else if (type == ROW_LATIN1) {
+            int length = in.readShort();
+            byte[] line = new byte[columns];
+            in.readFully(line, 0, length);
+            Arrays.fill(line, length, columns, (byte) ' ');
+            return line;
+        } else if (type == ROW_BASIC) {
+            String text = in.readUTF();
+            char[] line = new char[columns];
+            text.getChars(0, text.length(), line, 0);
+            Arrays.fill(line, text.length(), columns, ' ');
+            return line;
+        } else {
+            return FullUnicodeLine.readFrom(in, columns);
+        }
+    }
+
+    /**
+     * Read the styles of a row written by writeRow(), following its text.
+     */
+    static StyleRow readColor(DataInputStream in, int columns) throws IOException {
+        return in.readBoolean() ? StyleRow.readFrom(in, columns) : null;
+    }
+
+    /**
+     * Drop the rows of a block whose compressed copy is ready, if the rows
+     * are still the ones which were compressed.
+     */
+    private void freezeBlock(CompressionJob job) {
+        int block = job.mBlock;
+        mBlockPending[block] = false;
+        if (job.mData == null || job.mGeneration != mBlockGeneration[block]
+                || mBlockData[block] != null || !isColdBlock(block)) {
+            return;
+        }
+        int first = block << BLOCK_SHIFT;
+        mBlockData[block] = job.mData;
+        mBlockFrozen[block] = true;
+        Arrays.fill(mLines, first, first + job.mLines.length, null);
+        Arrays.fill(mColor, first, first + job.mLines.length, null);
+    }
+
+    /**
+     * Make sure the row at an internal index is in the buffer, thawing its
+     * block if it's frozen.
+     */
+    private void thawRow(int row) {
+        byte[][] blockData = mBlockData;
+        if (blockData != null && blockData[row >> BLOCK_SHIFT] != null) {
+            useBlock(row >> BLOCK_SHIFT);
+        }
+    }
+
+    private void useBlock(int block) {
+        mBlockLastUsed[block] = ++mBlockClock;
+        if (!mBlockFrozen[block]) {
+            return;
+        }
+        decompressBlock(block);
+        mBlockFrozen[block] = false;
+        if (++mThawedBlocks > THAWED_BLOCKS) {
+            // Freeze the least recently used thawed block again
+            int oldest = -1;
+            for (int i = 0; i < mBlockData.length; ++i) {
+                if (i != block && mBlockData[i] != null && !mBlockFrozen[i]
+                        && (oldest < 0 || mBlockLastUsed[i] < mBlockLastUsed[oldest])) {
+                    oldest = i;
+                }
+            }
+            int first = oldest << BLOCK_SHIFT;
+            int end = Math.min(first + BLOCK_ROWS, mTotalRows);
+            Arrays.fill(mLines, first, end, null);
+            Arrays.fill(mColor, first, end, null);
+            mBlockFrozen[oldest] = true;
+            --mThawedBlocks;
+        }
+    }
+
+    private void decompressBlock(int block) {
+        int first = block << BLOCK_SHIFT;
+        int count = Math.min(BLOCK_ROWS, mTotalRows - first);
+        int columns = mColumns;
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream in = new DataInputStream(new InflaterInputStream(
+                    new ByteArrayInputStream(mBlockData[block]), inflater));
+            for (int i = 0; i < count; ++i) {
+                mLines[first + i] = readLine(in, columns);
+                mColor[first + i] = shareIfSolid(readColor(in, columns));
+            }
+        } catch (IOException e) {
+            // Can't happen -- we wrote the data ourselves
+            Log.e(TAG, "Couldn't decompress transcript rows", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Replace a solid row of styles by the shared row for its style.
+     */
+    private StyleRow shareIfSolid(StyleRow color) {
+        if (color != null && color.isSolidStyle()) {
+            return solidStyleRow(color.getSolidStyle());
+        }
+        return color;
+    }
+
+    /**
+     * Forget the compressed copy of a block whose rows are about to change,
+     * thawing it first if necessary.
+     */
+    private void discardBlock(int block) {
+        ++mBlockGeneration[block];
+        if (mBlockData[block] == null) {
+            return;
+        }
+        if (mBlockFrozen[block]) {
+            decompressBlock(block);
+            mBlockFrozen[block] = false;
+        } else {
+            --mThawedBlocks;
+        }
+        mBlockData[block] = null;
+    }
+
+    /**
+     * Forget the compressed copies of the blocks holding count rows,
+     * starting at an internal index.
+     */
+    private void discardRows(int row, int count) {
+        if (mBlockData == null) {
+            return;
+        }
+        int totalRows = mTotalRows;
+        int i = 0;
+        while (i < count) {
+            int index = (row + i) % totalRows;
+            discardBlock(index >> BLOCK_SHIFT);
+            // Skip to the start of the next block
+            i += Math.min(BLOCK_ROWS - (index & (BLOCK_ROWS - 1)), totalRows - index);
+        }
+    }
+
+    private void discardCompressedBlocks() {
+        if (mBlockData == null) {
+            return;
+        }
+        for (int block = 0; block < mBlockData.length; ++block) {
+            discardBlock(block);
+        }
+    }
+
+    /**
+     * Discard count rows of the transcript, starting at row, by moving the
+     * rows below them and the screen up over them.  The rows above are left
+     * where they are.
+     */
+    private void dropTranscriptRows(int row, int count) {
+        if (count <= 0) {
+            return;
+        }
+        int totalRows = mTotalRows;
+        int first = externalToInternalRow(row);
+        int moved = mScreenRows - row - count;
+        discardRows(first, count + moved);
+        for (int i = 0; i < count; ++i) {
+            recycleRow((first + i) % totalRows);
+        }
+        blockCopyLines((first + count) % totalRows, moved, -count);
+
+        // The rows the screen moved off of are now below it
+        for (int i = 0; i < count; ++i) {
+            int index = (first + moved + i) % totalRows;
+            mLines[index] = null;
+            mColor[index] = null;
+            mLineWrap[index] = false;
+        }
+        mScreenFirstRow = (mScreenFirstRow + totalRows - count) % totalRows;
+        mActiveTranscriptRows -= count;
+    }
+
+    /**
+     * Discard the lines scrolled off the top margin and move the rest of the
+     * scrolling region up in place, without touching the transcript.
+     */
+    private void scrollInPlace(int topMargin, int bottomMargin, int count, int style) {
+        int srcRow = externalToInternalRow(topMargin + count);
+        blockCopyLines(srcRow, bottomMargin - topMargin - count, -count);
+        blankLines(bottomMargin - count, count, style);
+    }
+
+    /**
+     * Insert count blank lines at row, moving the lines between row and the
+     * bottom margin down.  Lines moved past the bottom margin are lost.
+     * Only references to the rows are moved, so this takes time
+     * proportional to the number of lines, not the number of characters.
+     *
+     * @param row The row at which to insert lines.
+     * @param bottomMargin One line after the last line that is moved.
+     * @param count The number of lines to insert.
+     * @param style The style for the inserted lines.
+     */
+    public void insertLines(int row, int bottomMargin, int count, int style) {
+        if (row < 0 || row >= bottomMargin || bottomMargin > mScreenRows
+                || count < 0 || count > bottomMargin - row) {
+            throw new IllegalArgumentException();
+        }
+        if (count == 0) {
+            return;
+        }
+        blockCopyLines(externalToInternalRow(row), bottomMargin - row - count,
+                count);
+        eraseLines(row, count, style);
+    }
+
+    /**
+     * Delete count lines at row, moving the lines between row and the bottom
+     * margin up and inserting blank lines above the bottom margin.  Only
+     * references to the rows are moved, so this takes time proportional to
+     * the number of lines, not the number of characters.
+     *
+     * @param row The first row to be deleted.
+     * @param bottomMargin One line after the last line that is moved.
+     * @param count The number of lines to delete.
+     * @param style The style for the inserted blank lines.
+     */
+    public void deleteLines(int row, int bottomMargin, int count, int style) {
+        if (row < 0 || row >= bottomMargin || bottomMargin > mScreenRows
+                || count < 0 || count > bottomMargin - row) {
             throw new IllegalArgumentException();
         }
-
-        int screenRows = mScreenRows;
-        int totalRows = mTotalRows;
-
-        if (topMargin == 0 && bottomMargin == screenRows) {
-            // Fast path -- scroll the entire screen
-            mScreenFirstRow = (mScreenFirstRow + 1) % totalRows;
-            if (mActiveTranscriptRows < totalRows - screenRows) {
-                ++mActiveTranscriptRows;
-            }
-
-            // Blank the bottom margin
-            int blankRow = externalToInternalRow(bottomMargin - 1);
-            mLines[blankRow] = null;
-            mColor[blankRow] = new StyleRow(style, mColumns);
-            mLineWrap[blankRow] = false;
-
+        if (count == 0) {
             return;
         }
+        blockCopyLines(externalToInternalRow(row + count),
+                bottomMargin - row - count, -count);
+        eraseLines(bottomMargin - count, count, style);
+    }
 
-        int screenFirstRow = mScreenFirstRow;
-        int topMarginInt = externalToInternalRow(topMargin);
-        int bottomMarginInt = externalToInternalRow(bottomMargin);
-
-        /* Save the scrolled line, move the lines above it on the screen down
-           one line, move the lines on screen below the bottom margin down
-           one line, then insert the scrolled line into the transcript */
+    /**
+     * Erase count lines of the screen, starting at row, leaving the same
+     * contents as filling them with spaces of the given style would.  The
+     * lines are left unallocated, with a shared style row.
+     */
+    private void eraseLines(int row, int count, int style) {
         Object[] lines = mLines;
         StyleRow[] color = mColor;
         boolean[] lineWrap = mLineWrap;
-        Object scrollLine = lines[topMarginInt];
-        StyleRow scrollColor = color[topMarginInt];
-        boolean scrollLineWrap = lineWrap[topMarginInt];
-        blockCopyLines(screenFirstRow, topMargin, 1);
-        blockCopyLines(bottomMarginInt, screenRows - bottomMargin, 1);
-        lines[screenFirstRow] = scrollLine;
-        color[screenFirstRow] = scrollColor;
-        lineWrap[screenFirstRow] = scrollLineWrap;
-
-        // Update the screen location
-        mScreenFirstRow = (screenFirstRow + 1) % totalRows;
-        if (mActiveTranscriptRows < totalRows - screenRows) {
-            ++mActiveTranscriptRows;
+        int totalRows = mTotalRows;
+        int eraseRow = externalToInternalRow(row);
+        for (int i = 0; i < count; ++i) {
+            lines[eraseRow] = null;
+            color[eraseRow] = solidStyleRow(style);
+            lineWrap[eraseRow] = false;
+            eraseRow = (eraseRow + 1) % totalRows;
         }
+    }
 
-        // Blank the bottom margin
-        int blankRow = externalToInternalRow(bottomMargin - 1);
-        lines[blankRow] = null;
-        color[blankRow] = new StyleRow(style, mColumns);
-        lineWrap[blankRow] = false;
-
-        return;
+    /**
+     * Blank count lines of the screen, starting at row.
+     */
+    private void blankLines(int row, int count, int style) {
+        Object[] lines = mLines;
+        StyleRow[] color = mColor;
+        boolean[] lineWrap = mLineWrap;
+        int totalRows = mTotalRows;
+        int blankRow = externalToInternalRow(row);
+        for (int i = 0; i < count; ++i) {
+            lines[blankRow] = null;
+            color[blankRow] = solidStyleRow(style);
+            lineWrap[blankRow] = false;
+            blankRow = (blankRow + 1) % totalRows;
+        }
     }
 
     /**
@@ -375,87 +1619,37 @@ public void blockCopy(int sx, int sy, int w, int h, int dx, int dy) {
                 || dy + h > mScreenRows) {
             throw new IllegalArgumentException();
         }
-        Object[] lines = mLines;
-        StyleRow[] color = mColor;
         if (sy > dy) {
             // Move in increasing order
             for (int y = 0; y < h; y++) {
-                int srcRow = externalToInternalRow(sy + y);
-                int dstRow = externalToInternalRow(dy + y);
-                if (lines[srcRow] instanceof char[] && lines[dstRow] instanceof char[]) {
-                    System.arraycopy(lines[srcRow], sx, lines[dstRow], dx, w);
-                } else {
-                    // XXX There has to be a faster way to do this ...
-                    int extDstRow = dy + y;
-                    char[] tmp = getLine(sy + y, sx, sx + w, true);
-                    if (tmp == null) {
-                        // Source line was blank
-                        blockSet(dx, extDstRow, w, 1, ' ', mDefaultStyle);
-                        continue;
-                    }
-                    char cHigh = 0;
-                    int x = 0;
-                    int columns = mColumns;
-                    for (int i = 0; i < tmp.length; ++i) {
-                        if (tmp[i] == 0 || dx + x >= columns) {
-                            break;
-                        }
-                        if (Character.isHighSurrogate(tmp[i])) {
-                            cHigh = tmp[i];
-                            continue;
-                        } else if (Character.isLowSurrogate(tmp[i])) {
-                            int codePoint = Character.toCodePoint(cHigh, tmp[i]);
-                            setChar(dx + x, extDstRow, codePoint);
-                            x += charWidth(codePoint);
-                        } else {
-                            setChar(dx + x, extDstRow, tmp[i]);
-                            x += charWidth(tmp[i]);
-                        }
-                    }
-                }
-                color[srcRow].copy(sx, color[dstRow], dx, w);
+                copyBlockRow(sx, sy + y, w, dx, dy + y);
             }
         } else {
             // Move in decreasing order
             for (int y = 0; y < h; y++) {
                 int y2 = h - (y + 1);
-                int srcRow = externalToInternalRow(sy + y2);
-                int dstRow = externalToInternalRow(dy + y2);
-                if (lines[srcRow] instanceof char[] && lines[dstRow] instanceof char[]) {
-                    System.arraycopy(lines[srcRow], sx, lines[dstRow], dx, w);
-                } else {
-                    int extDstRow = dy + y2;
-                    char[] tmp = getLine(sy + y2, sx, sx + w, true);
-                    if (tmp == null) {
-                        // Source line was blank
-                        blockSet(dx, extDstRow, w, 1, ' ', mDefaultStyle);
-                        continue;
-                    }
-                    char cHigh = 0;
-                    int x = 0;
-                    int columns = mColumns;
-                    for (int i = 0; i < tmp.length; ++i) {
-                        if (tmp[i] == 0 || dx + x >= columns) {
-                            break;
-                        }
-                        if (Character.isHighSurrogate(tmp[i])) {
-                            cHigh = tmp[i];
-                            continue;
-                        } else if (Character.isLowSurrogate(tmp[i])) {
-                            int codePoint = Character.toCodePoint(cHigh, tmp[i]);
-                            setChar(dx + x, extDstRow, codePoint);
-                            x += charWidth(codePoint);
-                        } else {
-                            setChar(dx + x, extDstRow, tmp[i]);
-                            x += charWidth(tmp[i]);
-                        }
-                    }
-                }
-                color[srcRow].copy(sx, color[dstRow], dx, w);
+                copyBlockRow(sx, sy + y2, w, dx, dy + y2);
             }
         }
     }
 
+    /**
+     * Copy w columns of one row of the screen to another, or to another
+     * place in the same row.
+     */
+    private void copyBlockRow(int sx, int sy, int w, int dx, int dy) {
+        int srcRow = externalToInternalRow(sy);
+        int dstRow = externalToInternalRow(dy);
+        Object src = mLines[srcRow];
+        if (src == null) {
+            // Source line was blank
+            blankBlock(dx, dy, w, 1, mDefaultStyle);
+            return;
+        }
+        copyRowText(src, sx, dstRow, dx, w);
+        copyStyles(srcRow, sx, dstRow, dx, w);
+    }
+
     /**
      * Block set characters. All characters must be within the bounds of the
      * screen, or else and InvalidParemeterException will be thrown. Typically
@@ -474,6 +1668,11 @@ public void blockSet(int sx, int sy, int w, int h, int val, int style) {
             throw new IllegalArgumentException();
         }
 
+        if (val == ' ') {
+            blankBlock(sx, sy, w, h, style);
+            return;
+        }
+
         for (int y = 0; y < h; y++) {
             for (int x = 0; x < w; x++) {
                 setChar(sx + x, sy + y, val, style);
@@ -481,6 +1680,48 @@ public void blockSet(int sx, int sy, int w, int h, int val, int style) {
         }
     }
 
+    /**
+     * Fill a block of the screen with spaces of the given style, as erases
+     * do.  Rows erased whole are left unallocated with a shared style row,
+     * as eraseLines() leaves them, so clearing the screen allocates nothing;
+     * a partial erase only stores spaces into rows which already exist.
+     */
+    private void blankBlock(int sx, int sy, int w, int h, int style) {
+        Object[] lines = mLines;
+        StyleRow[] color = mColor;
+        for (int y = sy; y < sy + h; ++y) {
+            int row = externalToInternalRow(y);
+            if (w == mColumns) {
+                recycleRow(row);
+                color[row] = solidStyleRow(style);
+                continue;
+            }
+
+            Object line = lines[row];
+            if (line == null) {
+                if (style == mDefaultStyle) {
+                    // The columns are already blank
+                    if (color[row] != null) {
+                        setStyle(row, sx, w, style);
+                    }
+                    continue;
+                }
+                line = allocateLatin1Line(row);
+            }
+            if (line instanceof byte[]) {
+                Arrays.fill((byte[]) line, sx, sx + w, (byte) ' ');
+            } else if (line instanceof char[]) {
+                Arrays.fill((char[]) line, sx, sx + w, ' ');
+            } else {
+                FullUnicodeLine fullLine = (FullUnicodeLine) line;
+                for (int x = sx; x < sx + w; ++x) {
+                    fullLine.setChar(x, ' ');
+                }
+            }
+            setStyle(row, sx, w, style);
+        }
+    }
+
     /**
      * Minimum API version for which we're willing to let Android try
      * rendering conjoining Hangul jamo as composed syllable blocks.
@@ -516,12 +1757,6 @@ public static int charWidth(int codePoint) {
             return 1;
         }
 
-        /* HACK: We're using ASCII ESC to save the location of the cursor
-           across screen resizes, so we need to pretend that it has width 1 */
-        if (codePoint == 27) {
-            return 1;
-        }
-
         switch (Character.getType(codePoint)) {
         case Character.CONTROL:
         case Character.FORMAT:
@@ -600,7 +1835,7 @@ public static int charWidth(char[] chars, int index) {
      * this case, the last character requested will be followed by a NUL, and
      * the contents of the rest of the array could potentially be garbage.
      *
-     * @param row The row number to get (-mActiveTranscriptRows..mScreenRows-1)
+     * @param row The row number to get (-getActiveTranscriptRows()..mScreenRows-1)
      * @param x1 The first screen position that's wanted
      * @param x2 One after the last screen position that's wanted
      * @return A char[] array containing the requested contents
@@ -617,34 +1852,48 @@ public char[] getLine(int row) {
     }
 
     private char[] getLine(int row, int x1, int x2, boolean strictBounds) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
         int columns = mColumns;
-        row = externalToInternalRow(row);
-        if (mLines[row] == null) {
+        Object rowLine = getRowLine(row);
+        if (rowLine == null) {
             // Line is blank
             return null;
         }
-        if (mLines[row] instanceof char[]) {
+        if (rowLine instanceof byte[]) {
+            // Line contains only regular-width Latin-1 characters
+            if (tmpLine == null || tmpLine.length < columns + 1) {
+                tmpLine = new char[columns+1];
+            }
+            byte[] latin1Line = (byte[]) rowLine;
+            char[] line = tmpLine;
+            int length = x2 - x1;
+            for (int i = 0; i < length; ++i) {
+                line[i] = (char) (latin1Line[x1 + i] & 0xff);
+            }
+            line[length] = 0;
+            return line;
+        }
+        if (rowLine instanceof char[]) {
             // Line contains only regular-width BMP characters
             if (x1 == 0 && x2 == columns) {
                 // Want the whole row? Easy.
-                return (char[]) mLines[row];
+                return (char[]) rowLine;
             } else {
                 if (tmpLine == null || tmpLine.length < columns + 1) {
                     tmpLine = new char[columns+1];
                 }
                 int length = x2 - x1;
-                System.arraycopy(mLines[row], x1, tmpLine, 0, length);
+                System.arraycopy(rowLine, x1, tmpLine, 0, length);
                 tmpLine[length] = 0;
                 return tmpLine;
             }
         }
 
         // Figure out how long the array needs to be
-        FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+        FullUnicodeLine line = (FullUnicodeLine) rowLine;
         char[] rawLine = line.getLine();
 
         if (x1 == 0 && x2 == columns) {
@@ -695,18 +1944,26 @@ public StyleRow getLineColor(int row) {
     }
 
     private StyleRow getLineColor(int row, int x1, int x2, boolean strictBounds) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
-        row = externalToInternalRow(row);
-        StyleRow color = mColor[row];
+        StyleRow color;
+        Object rowLine;
+        if (readOverflowRow(row)) {
+            color = mOverflow.getColor();
+            rowLine = mOverflow.getLine();
+        } else {
+            row = externalToInternalRow(row);
+            thawRow(row);
+            color = mColor[row];
+            rowLine = mLines[row];
+        }
         StyleRow tmp = tmpColor;
         if (color != null) {
             int columns = mColumns;
-            if (!strictBounds && mLines[row] != null &&
-                    mLines[row] instanceof FullUnicodeLine) {
-                FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+            if (!strictBounds && rowLine instanceof FullUnicodeLine) {
+                FullUnicodeLine line = (FullUnicodeLine) rowLine;
                 /* If either the start or the end column is in the middle of
                  * an East Asian wide character, include the appropriate column
                  * of style information */
@@ -727,12 +1984,71 @@ private StyleRow getLineColor(int row, int x1, int x2, boolean strictBounds) {
         }
     }
 
+    /**
+     * Point a row view at the text and styles of a row, as they're stored.
+     * Nothing is copied; the view is only good until the transcript changes,
+     * or another row is read.
+     *
+     * @param row The row number to view (-getActiveTranscriptRows()..mScreenRows-1)
+     * @param view The view to point at the row
+     */
+    void getRow(int row, TranscriptRow view) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
+            throw new IllegalArgumentException();
+        }
+
+        if (readOverflowRow(row)) {
+            TranscriptOverflow overflow = mOverflow;
+            view.set(overflow.getLine(), overflow.getColor(),
+                    overflow.getLineWrap(), mColumns, mDefaultStyle);
+            return;
+        }
+        row = externalToInternalRow(row);
+        thawRow(row);
+        view.set(mLines[row], mColor[row], mLineWrap[row], mColumns,
+                mDefaultStyle);
+    }
+
+    /**
+     * Point a row view at a row at the width it was written at.  Rows in
+     * the overflow keep the width the screen had when they were written, so
+     * their text isn't cut off if the screen has since become narrower; the
+     * view's getColumns() may then differ from the transcript's.
+     *
+     * @param row The row number to view (-getActiveTranscriptRows()..mScreenRows-1)
+     * @param view The view to point at the row
+     */
+    void getStoredRow(int row, TranscriptRow view) {
+        if (row < -getActiveTranscriptRows() || row >= -mActiveTranscriptRows) {
+            getRow(row, view);
+            return;
+        }
+
+        TranscriptOverflow overflow = mOverflow;
+        overflow.read(overflow.getRows() + mActiveTranscriptRows + row);
+        view.set(overflow.getLine(), overflow.getColor(),
+                overflow.getLineWrap(), overflow.getColumns(), mDefaultStyle);
+    }
+
     boolean isBasicLine(int row) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
 
-        return (mLines[externalToInternalRow(row)] instanceof char[]);
+        Object rowLine = getRowLine(row);
+        return (rowLine instanceof char[] || rowLine instanceof byte[]);
+    }
+
+    /**
+     * Get the text of a row, wherever it's kept.
+     */
+    private Object getRowLine(int row) {
+        if (readOverflowRow(row)) {
+            return mOverflow.getLine();
+        }
+        row = externalToInternalRow(row);
+        thawRow(row);
+        return mLines[row];
     }
 
     public boolean getChar(int row, int column) {
@@ -755,19 +2071,24 @@ public boolean getChar(int row, int column, int charIndex) {
      * @return Whether or not there are characters following this one in the column.
      */
     public boolean getChar(int row, int column, int charIndex, char[] out, int offset) {
-        if (row < -mActiveTranscriptRows || row > mScreenRows-1) {
+        if (row < -getActiveTranscriptRows() || row > mScreenRows-1) {
             throw new IllegalArgumentException();
         }
-        row = externalToInternalRow(row);
+        Object rowLine = getRowLine(row);
 
-        if (mLines[row] instanceof char[]) {
+        if (rowLine instanceof byte[]) {
+            // Fast path: all regular-width Latin-1 chars in the row
+            out[offset] = (char) (((byte[]) rowLine)[column] & 0xff);
+            return false;
+        }
+        if (rowLine instanceof char[]) {
             // Fast path: all regular-width BMP chars in the row
-            char[] line = (char[]) mLines[row];
+            char[] line = (char[]) rowLine;
             out[offset] = line[column];
             return false;
         }
 
-        FullUnicodeLine line = (FullUnicodeLine) mLines[row];
+        FullUnicodeLine line = (FullUnicodeLine) rowLine;
         return line.getChar(column, charIndex, out, offset);
     }
 
@@ -775,27 +2096,46 @@ private boolean isBasicChar(int codePoint) {
         return !(charWidth(codePoint) != 1 || Character.charCount(codePoint) != 1);
     }
 
-    private char[] allocateBasicLine(int row, int columns) {
-        char[] line = new char[columns];
+    private byte[] allocateLatin1Line(int row) {
+        byte[] line = obtainLatin1Line();
 
-        // Fill the line with blanks
-        for (int i = 0; i < columns; ++i) {
-            line[i] = ' ';
+        mLines[row] = line;
+        if (mColor[row] == null) {
+            mColor[row] = solidStyleRow(0);
         }
+        return line;
+    }
+
+    private char[] allocateBasicLine(int row) {
+        char[] line = obtainBasicLine();
 
         mLines[row] = line;
         if (mColor[row] == null) {
-            mColor[row] = new StyleRow(0, columns);
+            mColor[row] = solidStyleRow(0);
+        }
+        return line;
+    }
+
+    /**
+     * Convert a Latin-1 row to a basic row.
+     */
+    private char[] widenLine(int row) {
+        byte[] latin1Line = (byte[]) mLines[row];
+        char[] line = obtainBasicLine();
+        for (int i = 0; i < latin1Line.length; ++i) {
+            line[i] = (char) (latin1Line[i] & 0xff);
         }
+        mLines[row] = line;
+        recycleLatin1Line(latin1Line);
         return line;
     }
 
-    private FullUnicodeLine allocateFullLine(int row, int columns) {
-        FullUnicodeLine line = new FullUnicodeLine(columns);
+    private FullUnicodeLine allocateFullLine(int row) {
+        FullUnicodeLine line = obtainFullLine(null);
 
         mLines[row] = line;
         if (mColor[row] == null) {
-            mColor[row] = new StyleRow(0, columns);
+            mColor[row] = solidStyleRow(0);
         }
         return line;
     }
@@ -806,11 +2146,65 @@ public boolean setChar(int column, int row, int codePoint, int style) {
         }
 
         row = externalToInternalRow(row);
-        mColor[row].set(column, style);
+        setStyle(row, column, 1, style);
 
         return true;
     }
 
+    /**
+     * Store a run of regular-width BMP characters into a single row.
+     *
+     * Every character in the run must be a "basic" character (BMP, display
+     * width 1), and the whole run must fit on the row -- the caller is
+     * responsible for wrapping.  This lets the emulator store plain text
+     * without going through setChar() once per character.
+     *
+     * @param column The column at which the run starts.
+     * @param row The row to store the run into.
+     * @param text The array containing the run.
+     * @param offset The index of the first character of the run in text.
+     * @param count The number of characters in the run.
+     * @param style The style to store with the run.
+     */
+    public void setChars(int column, int row, char[] text, int offset, int count, int style) {
+        if (row >= mScreenRows || column < 0 || column + count > mColumns) {
+            Log.e(TAG, "illegal arguments! " + row + " " + column + " " + count + " " + mScreenRows + " " + mColumns);
+            throw new IllegalArgumentException();
+        }
+        row = externalToInternalRow(row);
+
+        Object line = mLines[row];
+        if (line == null) {
+            line = allocateLatin1Line(row);
+        }
+
+        if (line instanceof byte[]) {
+            byte[] latin1Line = (byte[]) line;
+            int i;
+            for (i = 0; i < count; ++i) {
+                char c = text[offset + i];
+                if (c >= 0x100) {
+                    break;
+                }
+                latin1Line[column + i] = (byte) c;
+            }
+            if (i < count) {
+                // Store the rest of the run in a wider row
+                char[] basicLine = widenLine(row);
+                System.arraycopy(text, offset + i, basicLine, column + i, count - i);
+            }
+        } else if (line instanceof char[]) {
+            System.arraycopy(text, offset, (char[]) line, column, count);
+        } else {
+            FullUnicodeLine fullLine = (FullUnicodeLine) line;
+            for (int i = 0; i < count; ++i) {
+                fullLine.setChar(column + i, text[offset + i]);
+            }
+        }
+
+        setStyle(row, column, count, style);
+    }
+
     public boolean setChar(int column, int row, int codePoint) {
         if (row >= mScreenRows || column >= mColumns) {
             Log.e(TAG, "illegal arguments! " + row + " " + column + " " + mScreenRows + " " + mColumns);
@@ -826,13 +2220,31 @@ public boolean setChar(int column, int row, int codePoint) {
 
         // Allocate a row on demand
         if (mLines[row] == null) {
-            if (isBasicChar(codePoint)) {
-                allocateBasicLine(row, mColumns);
+            if (!isBasicChar(codePoint)) {
+                allocateFullLine(row);
+                basicMode = 0;
+            } else if (codePoint < 0x100) {
+                allocateLatin1Line(row);
                 basicMode = 1;
             } else {
-                allocateFullLine(row, mColumns);
-                basicMode = 0;
+                allocateBasicLine(row);
+                basicMode = 1;
+            }
+        }
+
+        if (mLines[row] instanceof byte[]) {
+            if (basicMode == -1) {
+                basicMode = isBasicChar(codePoint) ? 1 : 0;
+            }
+
+            if (basicMode == 1 && codePoint < 0x100) {
+                // Fast path -- just put the char in the array
+                ((byte[]) mLines[row])[column] = (byte) codePoint;
+                return true;
             }
+
+            // Need to switch to a wider row
+            widenLine(row);
         }
 
         if (mLines[row] instanceof char[]) {
@@ -853,7 +2265,8 @@ public boolean setChar(int column, int row, int codePoint) {
             }
 
             // Need to switch to the full-featured mode
-            mLines[row] = new FullUnicodeLine(line);
+            mLines[row] = obtainFullLine(line);
+            recycleBasicLine(line);
         }
 
         FullUnicodeLine line = (FullUnicodeLine) mLines[row];
@@ -861,281 +2274,3 @@ public boolean setChar(int column, int row, int codePoint) {
         return true;
     }
 }
-
-/*
- * A representation of a line that's capable of handling non-BMP characters,
- * East Asian wide characters, and combining characters.
- *
- * The text of the line is stored in an array of char[], allowing easy
- * conversion to a String and/or reuse by other string-handling functions.
- * An array of short[] is used to keep track of the difference between a column
- * and the starting index corresponding to its contents in the char[] array (so
- * if column 42 starts at index 45 in the char[] array, the offset stored is 3).
- * Column 0 always starts at index 0 in the char[] array, so we use that
- * element of the array to keep track of how much of the char[] array we're
- * using at the moment.
- */
-class FullUnicodeLine {
-    private static final float SPARE_CAPACITY_FACTOR = 1.5f;
-
-    private char[] mText;
-    private short[] mOffset;
-    private int mColumns;
-
-    public FullUnicodeLine(int columns) {
-        commonConstructor(columns);
-        char[] text = mText;
-        // Fill in the line with blanks
-        for (int i = 0; i < columns; ++i) {
-            text[i] = ' ';
-        }
-        // Store the space used
-        mOffset[0] = (short) columns;
-    }
-
-    public FullUnicodeLine(char[] basicLine) {
-        commonConstructor(basicLine.length);
-        System.arraycopy(basicLine, 0, mText, 0, mColumns);
-        // Store the space used
-        mOffset[0] = (short) basicLine.length;
-    }
-
-    private void commonConstructor(int columns) {
-        mColumns = columns;
-        mOffset = new short[columns];
-        mText = new char[(int)(SPARE_CAPACITY_FACTOR*columns)];
-    }
-
-    public int getSpaceUsed() {
-        return mOffset[0];
-    }
-
-    public char[] getLine() {
-        return mText;
-    }
-
-    public int findStartOfColumn(int column) {
-        if (column == 0) {
-            return 0;
-        } else {
-            return column + mOffset[column];
-        }
-    }
-
-    public boolean getChar(int column, int charIndex, char[] out, int offset) {
-        int pos = findStartOfColumn(column);
-        int length;
-        if (column + 1 < mColumns) {
-            length = findStartOfColumn(column + 1) - pos;
-        } else {
-            length = getSpaceUsed() - pos;
-        }
-        if (charIndex >= length) {
-            throw new IllegalArgumentException();
-        }
-        out[offset] = mText[pos + charIndex];
-        return (charIndex + 1 < length);
-    }
-
-    public void setChar(int column, int codePoint) {
-        int columns = mColumns;
-        if (column < 0 || column >= columns) {
-            throw new IllegalArgumentException();
-        }
-
-        char[] text = mText;
-        short[] offset = mOffset;
-        int spaceUsed = offset[0];
-
-        int pos = findStartOfColumn(column);
-
-        int charWidth = UnicodeTranscript.charWidth(codePoint);
-        int oldCharWidth = UnicodeTranscript.charWidth(text, pos);
-
-        if (charWidth == 2 && column == columns - 1) {
-            // A width 2 character doesn't fit in the last column.
-            codePoint = ' ';
-            charWidth = 1;
-        }
-
-        boolean wasExtraColForWideChar = false;
-        if (oldCharWidth == 2 && column > 0) {
-            /* If the previous screen column starts at the same offset in the
-             * array as this one, this column must be the second column used
-             * by an East Asian wide character */
-            wasExtraColForWideChar = (findStartOfColumn(column - 1) == pos);
-        }
-
-        // Get the number of elements in the mText array this column uses now
-        int oldLen;
-        if (wasExtraColForWideChar && column + 1 < columns) {
-            oldLen = findStartOfColumn(column + 1) - pos;
-        } else if (column + oldCharWidth < columns) {
-            oldLen = findStartOfColumn(column+oldCharWidth) - pos;
-        } else {
-            oldLen = spaceUsed - pos;
-        }
-
-        // Find how much space this column will need
-        int newLen = Character.charCount(codePoint);
-        if (charWidth == 0) {
-            /* Combining characters are added to the contents of the column
-               instead of overwriting them, so that they modify the existing
-               contents */
-            newLen += oldLen;
-        }
-        int shift = newLen - oldLen;
-
-        // Shift the rest of the line right to make room if necessary
-        if (shift > 0) {
-            if (spaceUsed + shift > text.length) {
-                // We need to grow the array
-                char[] newText = new char[text.length + columns];
-                System.arraycopy(text, 0, newText, 0, pos);
-                System.arraycopy(text, pos + oldLen, newText, pos + newLen, spaceUsed - pos - oldLen);
-                mText = text = newText;
-            } else {
-                System.arraycopy(text, pos + oldLen, text, pos + newLen, spaceUsed - pos - oldLen);
-            }
-        }
-
-        // Store the character
-        if (charWidth > 0) {
-            Character.toChars(codePoint, text, pos);
-        } else {
-            /* Store a combining character at the end of the existing contents,
-               so that it modifies them */
-            Character.toChars(codePoint, text, pos + oldLen);
-        }
-
-        // Shift the rest of the line left to eliminate gaps if necessary
-        if (shift < 0) {
-            System.arraycopy(text, pos + oldLen, text, pos + newLen, spaceUsed - pos - oldLen);
-        }
-
-        // Update space used
-        if (shift != 0) {
-            spaceUsed += shift;
-            offset[0] = (short) spaceUsed;
-        }
-
-        /*
-         * Handle cases where we need to pad with spaces to preserve column
-         * alignment
-         *
-         * width 2 -> width 1: pad with a space before or after the new
-         * character, depending on which of the two previously-occupied columns
-         * we wrote into
-         *
-         * inserting width 2 character into the second column of an existing
-         * width 2 character: pad with a space before the new character
-         */
-        if (oldCharWidth == 2 && charWidth == 1 || wasExtraColForWideChar && charWidth == 2) {
-            int nextPos = pos + newLen;
-            char[] newText = text;
-            if (spaceUsed + 1 > text.length) {
-                // Array needs growing
-                newText = new char[text.length + columns];
-                System.arraycopy(text, 0, newText, 0, wasExtraColForWideChar ? pos : nextPos);
-            }
-
-            if (wasExtraColForWideChar) {
-                // Padding goes before the new character
-                System.arraycopy(text, pos, newText, pos + 1, spaceUsed - pos);
-                newText[pos] = ' ';
-            } else {
-                // Padding goes after the new character
-                System.arraycopy(text, nextPos, newText, nextPos + 1, spaceUsed - nextPos);
-                newText[nextPos] = ' ';
-            }
-
-            if (newText != text) {
-                // Update mText to point to the newly grown array
-                mText = text = newText;
-            }
-
-            // Update space used
-            spaceUsed = ++offset[0];
-
-            // Correct the offset for the just-modified column to reflect
-            // width change
-            if (wasExtraColForWideChar) {
-                ++offset[column];
-                ++pos;
-            } else {
-                if (column == 0) {
-                    offset[1] = (short) (newLen - 1);
-                } else if (column + 1 < columns) {
-                    offset[column + 1] = (short) (offset[column] + newLen - 1);
-                }
-                ++column;
-            }
-
-            ++shift;
-        }
-        
-        /*
-         * Handle cases where we need to clobber the contents of the next
-         * column in order to preserve column alignment
-         *
-         * width 1 -> width 2: should clobber the contents of the next
-         * column (if next column contains wide char, need to pad with a space)
-         *
-         * inserting width 2 character into the second column of an existing
-         * width 2 character: same
-         */
-        if (oldCharWidth == 1 && charWidth == 2 || wasExtraColForWideChar && charWidth == 2) {
-            if (column == columns - 2) {
-                // Correct offset for the next column to reflect width change
-                offset[column + 1] = (short) (offset[column] - 1);
-
-                // Truncate the line after this character.
-                offset[0] = (short) (pos + newLen);
-                shift = 0;
-            } else {
-                // Overwrite the contents of the next column.
-                int nextPos = pos + newLen;
-                int nextWidth = UnicodeTranscript.charWidth(text, nextPos);
-                int nextLen;
-                if (column + nextWidth + 1 < columns) {
-                    nextLen = findStartOfColumn(column + nextWidth + 1) + shift - nextPos;
-                } else {
-                    nextLen = spaceUsed - nextPos;
-                }
-
-                if (nextWidth == 2) {
-                    text[nextPos] = ' ';
-                    // Shift the array to match
-                    if (nextLen > 1) {
-                        System.arraycopy(text, nextPos + nextLen, text, nextPos + 1, spaceUsed - nextPos - nextLen);
-                        shift -= nextLen - 1;
-                        offset[0] -= nextLen - 1;
-                    }
-                } else {
-                    // Shift the array leftwards
-                    System.arraycopy(text, nextPos + nextLen, text, nextPos, spaceUsed - nextPos - nextLen);
-                    shift -= nextLen;
-
-                    // Truncate the line
-                    offset[0] -= nextLen;
-                }
-
-                // Correct the offset for the next column to reflect width change
-                if (column == 0) {
-                    offset[1] = -1;
-                } else {
-                    offset[column + 1] = (short) (offset[column] - 1);
-                }
-                ++column;
-            }
-        }
-
-        // Update offset table
-        if (shift != 0) {
-            for (int i = column + 1; i < columns; ++i) {
-                offset[i] += shift;
-            }
-        }
-    }
-}
-
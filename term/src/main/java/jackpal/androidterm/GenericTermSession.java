@@ -57,6 +57,8 @@ class GenericTermSession extends TermSession {
 
     private String mProcessExitMessage;
 
+    private File mFullHistoryDir;
+
     private UpdateCallback mUTF8ModeNotify = new UpdateCallback() {
         public void onUpdate() {
             setPtyUTF8Mode(getUTF8Mode());
@@ -70,6 +72,7 @@ public void onUpdate() {
 
         this.createdAt = System.currentTimeMillis();
 
+        setUseEmulationThread(settings.getEmulationThreadFlag());
         updatePrefs(settings);
     }
 
@@ -77,6 +80,16 @@ public void updatePrefs(TermSettings settings) {
         mSettings = settings;
         setColorScheme(new ColorScheme(settings.getColorScheme()));
         setDefaultUTF8Mode(settings.defaultToUTF8Mode());
+        setTranscriptRows(settings.getScrollbackLines());
+        updateFullHistory();
+    }
+
+    private void updateFullHistory() {
+        if (mSettings.getFullHistoryFlag()) {
+            setTranscriptOverflowDirectory(mFullHistoryDir);
+        } else {
+            setTranscriptOverflowDirectory(null);
+        }
     }
 
     @Override
@@ -108,6 +121,13 @@ public void setProcessExitMessage(String message) {
         mProcessExitMessage = message;
     }
 
+    /* Likewise for the cache directory, where lines which have scrolled out
+       of the transcript are kept if the full history preference is set */
+    public void setFullHistoryDirectory(File dir) {
+        mFullHistoryDir = dir;
+        updateFullHistory();
+    }
+
     @Override
     protected void onProcessExit() {
         if (mSettings.closeWindowOnProcessExit()) {
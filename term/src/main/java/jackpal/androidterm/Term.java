@@ -566,6 +566,7 @@ protected static TermSession createTermSession(Context context, TermSettings set
 
         // XXX We should really be able to fetch this from within TermSession
         session.setProcessExitMessage(context.getString(R.string.process_exit_message));
+        session.setFullHistoryDirectory(context.getCacheDir());
         CrashLogger.log("createTermSession completed");
 
         return session;
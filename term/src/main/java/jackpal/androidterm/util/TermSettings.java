@@ -32,6 +32,7 @@ public class TermSettings {
     private int mStatusBar;
     private int mActionBarMode;
     private int mOrientation;
+    private int mScrollbackLines;
     private int mCursorStyle;
     private int mCursorBlink;
     private int mFontSize;
@@ -60,9 +61,14 @@ public class TermSettings {
 
     private boolean mUseKeyboardShortcuts;
 
+    private boolean mEmulationThread;
+
+    private boolean mFullHistory;
+
     private static final String STATUSBAR_KEY = "statusbar";
     private static final String ACTIONBAR_KEY = "actionbar";
     private static final String ORIENTATION_KEY = "orientation";
+    private static final String SCROLLBACK_KEY = "scrollback";
     private static final String FONTSIZE_KEY = "fontsize";
     private static final String COLOR_KEY = "color";
     private static final String UTF8_KEY = "utf8_by_default";
@@ -81,6 +87,8 @@ public class TermSettings {
     private static final String ALT_SENDS_ESC = "alt_sends_esc";
     private static final String MOUSE_TRACKING = "mouse_tracking";
     private static final String USE_KEYBOARD_SHORTCUTS = "use_keyboard_shortcuts";
+    private static final String EMULATION_THREAD_KEY = "emulation_thread";
+    private static final String FULL_HISTORY_KEY = "full_history";
 
     public static final int WHITE               = 0xffffffff;
     public static final int BLACK               = 0xff000000;
@@ -161,6 +169,7 @@ private void readDefaultPrefs(Resources res) {
         mStatusBar = Integer.parseInt(res.getString(R.string.pref_statusbar_default));
         mActionBarMode = res.getInteger(R.integer.pref_actionbar_default);
         mOrientation = res.getInteger(R.integer.pref_orientation_default);
+        mScrollbackLines = Integer.parseInt(res.getString(R.string.pref_scrollback_default));
         mCursorStyle = Integer.parseInt(res.getString(R.string.pref_cursorstyle_default));
         mCursorBlink = Integer.parseInt(res.getString(R.string.pref_cursorblink_default));
         mFontSize = Integer.parseInt(res.getString(R.string.pref_fontsize_default));
@@ -182,6 +191,8 @@ private void readDefaultPrefs(Resources res) {
         mAltSendsEsc = res.getBoolean(R.bool.pref_alt_sends_esc_default);
         mMouseTracking = res.getBoolean(R.bool.pref_mouse_tracking_default);
         mUseKeyboardShortcuts = res.getBoolean(R.bool.pref_use_keyboard_shortcuts_default);
+        mEmulationThread = res.getBoolean(R.bool.pref_emulation_thread_default);
+        mFullHistory = res.getBoolean(R.bool.pref_full_history_default);
     }
 
     public void readPrefs(SharedPreferences prefs) {
@@ -189,6 +200,7 @@ public void readPrefs(SharedPreferences prefs) {
         mStatusBar = readIntPref(STATUSBAR_KEY, mStatusBar, 1);
         mActionBarMode = readIntPref(ACTIONBAR_KEY, mActionBarMode, ACTION_BAR_MODE_MAX);
         mOrientation = readIntPref(ORIENTATION_KEY, mOrientation, 2);
+        mScrollbackLines = readIntPref(SCROLLBACK_KEY, mScrollbackLines, 200000);
         // mCursorStyle = readIntPref(CURSORSTYLE_KEY, mCursorStyle, 2);
         // mCursorBlink = readIntPref(CURSORBLINK_KEY, mCursorBlink, 1);
         mFontSize = readIntPref(FONTSIZE_KEY, mFontSize, 288);
@@ -212,6 +224,8 @@ public void readPrefs(SharedPreferences prefs) {
         mMouseTracking = readBooleanPref(MOUSE_TRACKING, mMouseTracking);
         mUseKeyboardShortcuts = readBooleanPref(USE_KEYBOARD_SHORTCUTS,
                 mUseKeyboardShortcuts);
+        mEmulationThread = readBooleanPref(EMULATION_THREAD_KEY, mEmulationThread);
+        mFullHistory = readBooleanPref(FULL_HISTORY_KEY, mFullHistory);
         mPrefs = null;  // we leak a Context if we hold on to this
     }
 
@@ -247,6 +261,10 @@ public int getScreenOrientation() {
         return mOrientation;
     }
 
+    public int getScrollbackLines() {
+        return mScrollbackLines;
+    }
+
     public int getCursorStyle() {
         return mCursorStyle;
     }
@@ -287,6 +305,14 @@ public boolean getUseKeyboardShortcutsFlag() {
         return mUseKeyboardShortcuts;
     }
 
+    public boolean getEmulationThreadFlag() {
+        return mEmulationThread;
+    }
+
+    public boolean getFullHistoryFlag() {
+        return mFullHistory;
+    }
+
     public int getBackKeyCharacter() {
         switch (mBackKeyAction) {
             case BACK_KEY_SENDS_ESC: return 27;
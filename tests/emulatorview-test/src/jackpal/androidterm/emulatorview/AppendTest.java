@@ -0,0 +1,108 @@
+package jackpal.androidterm.emulatorview;
+
+import java.io.UnsupportedEncodingException;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Feeding output to TerminalEmulator.append() in one chunk must leave the
+ * screen as feeding it one byte at a time does, even though a chunk's plain
+ * text goes to the screen in runs.
+ */
+public class AppendTest extends AndroidTestCase {
+    private static final int ROWS = 5;
+
+    private TranscriptScreen mScreen;
+    private TerminalEmulator mEmulator;
+    private int mColumns;
+
+    private void newEmulator(int columns) {
+        mScreen = new TranscriptScreen(columns, ROWS, ROWS, null);
+        mEmulator = new TerminalEmulator(new TermSession(), mScreen, columns,
+                ROWS, null);
+        mEmulator.setDefaultUTF8Mode(true);
+        mColumns = columns;
+    }
+
+    private static byte[] utf8(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String rowText(int row) {
+        return mScreen.getSelectedText(0, row, mColumns - 1, row);
+    }
+
+    private String[] appendWhole(int columns, String text) {
+        newEmulator(columns);
+        byte[] bytes = utf8(text);
+        mEmulator.append(bytes, 0, bytes.length);
+        return screenText();
+    }
+
+    private String[] appendBytes(int columns, String text) {
+        newEmulator(columns);
+        byte[] bytes = utf8(text);
+        for (int i = 0; i < bytes.length; ++i) {
+            mEmulator.append(bytes, i, 1);
+        }
+        return screenText();
+    }
+
+    private String[] screenText() {
+        String[] text = new String[ROWS];
+        for (int row = 0; row < ROWS; ++row) {
+            text[row] = rowText(row);
+        }
+        return text;
+    }
+
+    private void assertSameScreen(int columns, String text) {
+        String[] expected = appendBytes(columns, text);
+        String[] actual = appendWhole(columns, text);
+        for (int row = 0; row < ROWS; ++row) {
+            assertEquals(expected[row], actual[row]);
+        }
+    }
+
+    public void testWideAndSupplementaryText() {
+        assertSameScreen(17, "中文 𝔸𝔹 café\r\nx́y");
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; ++i) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+
+    public void testShortLines() {
+        assertSameScreen(10, "$ yes\r\n" + repeat("y\r\n", 23) + "y");
+        assertEquals("y", rowText(ROWS - 1));
+        assertEquals("y", rowText(ROWS - 2));
+    }
+
+    public void testShortLinesWithoutCarriageReturn() {
+        // The last lines are too long to fit where the cursor has got to
+        assertSameScreen(10, "x" + repeat("ab\n", 5) + "\r\n\n" + repeat("y\n", 7)
+                + repeat("abcdefg\n", 3));
+    }
+
+    public void testShortLinesInScrollingRegion() {
+        assertSameScreen(10, "top\r\n\033[2;4r\033[2H" + repeat("line\r\n", 9)
+                + "\033[r\033[5Hbottom");
+        assertEquals("top", rowText(0));
+        assertEquals("bottom", rowText(ROWS - 1));
+    }
+
+    public void testFailedCharacterKeepsRestOfRun() {
+        /* A combining character with nothing before it on the row can't be
+           stored; the characters after it still must be */
+        assertSameScreen(17, "a\r̈𝔸字中xyz");
+        assertEquals("𝔸字中xyz", rowText(0));
+    }
+}
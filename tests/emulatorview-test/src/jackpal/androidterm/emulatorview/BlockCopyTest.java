@@ -0,0 +1,100 @@
+package jackpal.androidterm.emulatorview;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Insert and delete character (ICH, DCH) on rows of East Asian wide
+ * characters, which UnicodeTranscript stores as full Unicode rows and moves
+ * with blockCopy().  See tests/insertDeleteChars for timing the same thing
+ * through the whole terminal.
+ */
+public class BlockCopyTest extends AndroidTestCase {
+    private static final String TAG = "BlockCopyTest";
+
+    private static final int COLUMNS = 80;
+    private static final int ROWS = 24;
+
+    private UnicodeTranscript mTranscript;
+
+    public void setUp() {
+        mTranscript = new UnicodeTranscript(COLUMNS, ROWS, ROWS, TextStyle.kNormalTextStyle);
+        mTranscript.blockSet(0, 0, COLUMNS, ROWS, ' ', TextStyle.kNormalTextStyle);
+        for (int y = 0; y < ROWS; y++) {
+            for (int x = 0; x + 1 < COLUMNS; x += 2) {
+                mTranscript.setChar(x, y, wideChar(x, y), TextStyle.kNormalTextStyle);
+            }
+        }
+    }
+
+    private static int wideChar(int x, int y) {
+        return 0x4e00 + (x * 7 + y) % 5000;
+    }
+
+    /**
+     * Move every row right by two columns and back, as CSI 2 @ followed by
+     * CSI 2 P does.
+     */
+    private void insertDeleteChars() {
+        for (int y = 0; y < ROWS; y++) {
+            mTranscript.blockCopy(0, y, COLUMNS - 2, 1, 2, y);
+            mTranscript.blockCopy(2, y, COLUMNS - 2, 1, 0, y);
+        }
+    }
+
+    public void testInsertDeleteWideChars() {
+        insertDeleteChars();
+
+        TranscriptRow row = new TranscriptRow();
+        for (int y = 0; y < ROWS; y++) {
+            mTranscript.getRow(y, row);
+            // The last two columns are left as the insert moved them
+            for (int x = 0; x < COLUMNS - 2; x += 2) {
+                assertEquals(wideChar(x, y), row.getCodePoint(x));
+                assertEquals(2, row.getCharWidth(x));
+                assertEquals(0, row.getCharWidth(x + 1));
+            }
+        }
+    }
+
+    private String getColumnText(TranscriptRow row, int column) {
+        int start = row.getTextIndex(column);
+        int end = row.getTextIndex(column + row.getCharWidth(column));
+        return new String(row.getText(), start, end - start);
+    }
+
+    public void testCopyCombiningChars() {
+        int style = TextStyle.kNormalTextStyle;
+        for (int x = 0; x < 4; x++) {
+            mTranscript.setChar(x, 0, 'e', style);
+            mTranscript.setChar(x, 0, 0x301, style);
+        }
+        // Copy the accented columns within the row, then accent some more
+        mTranscript.blockCopy(0, 0, 4, 1, 4, 0);
+        for (int x = 8; x < 12; x++) {
+            mTranscript.setChar(x, 0, 'e', style);
+            mTranscript.setChar(x, 0, 0x301, style);
+        }
+        // A second accent on a copy leaves the original alone
+        mTranscript.setChar(4, 0, 0x300, style);
+
+        TranscriptRow row = new TranscriptRow();
+        mTranscript.getRow(0, row);
+        for (int x = 0; x < 12; x++) {
+            assertEquals(x == 4 ? "e\u0301\u0300" : "e\u0301", getColumnText(row, x));
+        }
+    }
+
+    public void testInsertDeleteWideCharsSpeed() {
+        final int screens = 2000;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < screens; i++) {
+                insertDeleteChars();
+            }
+            long elapsed = System.nanoTime() - start;
+            Log.i(TAG, String.format("ICH 2 + DCH 2 on every row: %.2f us per screen",
+                    elapsed / 1000.0 / screens));
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package jackpal.androidterm.emulatorview;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Rewrapping the screen and transcript to a new width with
+ * TranscriptScreen.reflow(), as TerminalEmulator does when the screen is
+ * resized.
+ */
+public class ReflowTest extends AndroidTestCase {
+    private static final int ROWS = 5;
+    private static final int TRANSCRIPT_ROWS = 20;
+
+    private TranscriptScreen mScreen;
+    private int mColumns;
+
+    private void newScreen(int columns) {
+        mScreen = new TranscriptScreen(columns, TRANSCRIPT_ROWS, ROWS, null);
+        mColumns = columns;
+    }
+
+    private void reflow(int columns, int[] cursor) {
+        mScreen.reflow(columns, ROWS, cursor, TextStyle.kNormalTextStyle);
+        mColumns = columns;
+    }
+
+    /**
+     * Write text starting at the beginning of a row, wrapping it at the
+     * right margin as the emulator does: an East Asian wide character which
+     * doesn't fit in the last column goes to the next row whole.
+     *
+     * @return The row after the text.
+     */
+    private int write(int row, String text) {
+        int x = 0;
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            int width = UnicodeTranscript.charWidth(codePoint);
+            if (x + width > mColumns) {
+                mScreen.setLineWrap(row);
+                ++row;
+                x = 0;
+            }
+            mScreen.set(x, row, codePoint, TextStyle.kNormalTextStyle);
+            x += width;
+            i += Character.charCount(codePoint);
+        }
+        return row + 1;
+    }
+
+    private String rowText(int row) {
+        return mScreen.getSelectedText(0, row, mColumns - 1, row);
+    }
+
+    private boolean getLineWrap(int row) {
+        TranscriptRow view = new TranscriptRow();
+        assertTrue(mScreen.getRow(row, view));
+        return view.getLineWrap();
+    }
+
+    private void assertRow(int row, String text, boolean lineWrap) {
+        assertEquals(text, rowText(row));
+        assertEquals(lineWrap, getLineWrap(row));
+    }
+
+    public void testNarrowWrappedLines() {
+        newScreen(10);
+        int row = write(0, "abcdefghijklmno");
+        write(row, "xyz");
+        int[] cursor = { 3, 2 };
+
+        reflow(6, cursor);
+
+        assertRow(0, "abcdef", true);
+        assertRow(1, "ghijkl", true);
+        assertRow(2, "mno", false);
+        assertRow(3, "xyz", false);
+        assertEquals(3, cursor[0]);
+        assertEquals(3, cursor[1]);
+    }
+
+    public void testNarrowIntoTranscript() {
+        newScreen(10);
+        int row = write(0, "abcdefghijklmnopqrst");
+        write(row, "uvw");
+        int[] cursor = { 2, 2 };
+
+        reflow(3, cursor);
+
+        // Eight rows of text on a five row screen: three scroll off the top
+        assertEquals(3, mScreen.getActiveTranscriptRows());
+        assertRow(-3, "abc", true);
+        assertRow(-1, "ghi", true);
+        assertRow(3, "st", false);
+        assertRow(4, "uvw", false);
+        assertEquals("abcdefghijklmnopqrst\nuvw", mScreen.getSelectedText(0, -3, 2, 4));
+        assertEquals(2, cursor[0]);
+        assertEquals(4, cursor[1]);
+    }
+
+    public void testWidenWrappedLines() {
+        newScreen(4);
+        int row = write(0, "abcdefghij");
+        write(row, "k");
+        int[] cursor = { 1, 3 };
+
+        reflow(10, cursor);
+
+        assertRow(0, "abcdefghij", false);
+        assertRow(1, "k", false);
+        assertEquals("", rowText(2));
+        assertEquals(1, cursor[0]);
+        assertEquals(1, cursor[1]);
+    }
+
+    public void testNarrowThenWiden() {
+        newScreen(8);
+        int row = write(0, "one two three");
+        row = write(row, "four");
+        int[] cursor = { 4, row - 1 };
+
+        reflow(5, cursor);
+        reflow(8, cursor);
+
+        assertRow(0, "one two ", true);
+        assertRow(1, "three", false);
+        assertRow(2, "four", false);
+        assertEquals(4, cursor[0]);
+        assertEquals(2, cursor[1]);
+    }
+
+    public void testWideCharAtWrapColumn() {
+        newScreen(5);
+        write(0, "abc中d");
+        int[] cursor = { 1, 1 };
+
+        // The wide character no longer fits in the last column
+        reflow(4, cursor);
+
+        TranscriptRow view = new TranscriptRow();
+        mScreen.getRow(0, view);
+        assertTrue(view.getLineWrap());
+        assertEquals('c', view.getCodePoint(2));
+        assertTrue(view.isBlank(3));
+        mScreen.getRow(1, view);
+        assertFalse(view.getLineWrap());
+        assertEquals(0x4e2d, view.getCodePoint(0));
+        assertEquals(2, view.getCharWidth(0));
+        assertEquals(0, view.getCharWidth(1));
+        assertEquals('d', view.getCodePoint(2));
+        assertEquals(3, cursor[0]);
+        assertEquals(1, cursor[1]);
+    }
+
+    public void testWideCharTooWideForRow() {
+        newScreen(4);
+        write(0, "中文");
+        int[] cursor = { 0, 1 };
+
+        // No row can hold a wide character; it's left as a space
+        reflow(1, cursor);
+
+        TranscriptRow view = new TranscriptRow();
+        mScreen.getRow(0, view);
+        assertTrue(view.isBlank(0));
+        assertTrue(view.getLineWrap());
+    }
+
+    public void testCursorOnTrailingBlank() {
+        newScreen(10);
+        write(0, "ab");
+        // The user has typed three spaces after "ab"
+        int[] cursor = { 5, 0 };
+
+        reflow(3, cursor);
+
+        assertRow(0, "ab ", true);
+        assertEquals(2, cursor[0]);
+        assertEquals(1, cursor[1]);
+
+        reflow(10, cursor);
+
+        assertEquals("ab", rowText(0));
+        assertEquals(5, cursor[0]);
+        assertEquals(0, cursor[1]);
+    }
+
+    public void testBlankRowsBelowCursorDropped() {
+        newScreen(10);
+        write(0, "prompt");
+        int[] cursor = { 6, 0 };
+
+        reflow(4, cursor);
+
+        assertRow(0, "prom", true);
+        assertRow(1, "pt", false);
+        assertEquals(0, mScreen.getActiveTranscriptRows());
+        assertEquals(2, cursor[0]);
+        assertEquals(1, cursor[1]);
+    }
+
+    public void testAltScreenWithoutCursor() {
+        newScreen(10);
+        write(0, "hello");
+        write(ROWS - 1, "status");
+
+        // The alternate screen has no cursor to follow, and keeps its blank rows
+        reflow(6, null);
+
+        assertRow(0, "hello", false);
+        assertEquals("", rowText(1));
+        assertEquals("", rowText(ROWS - 2));
+        assertRow(ROWS - 1, "status", false);
+        assertEquals(0, mScreen.getActiveTranscriptRows());
+    }
+
+    public void testAltScreenNarrowScrolls() {
+        newScreen(10);
+        write(0, "hello");
+        write(ROWS - 1, "status bar");
+
+        reflow(5, null);
+
+        // The wrapped status line pushes the top row into the transcript
+        assertEquals(1, mScreen.getActiveTranscriptRows());
+        assertRow(-1, "hello", false);
+        assertRow(ROWS - 2, "statu", true);
+        assertRow(ROWS - 1, "s bar", false);
+    }
+}
@@ -0,0 +1,120 @@
+package jackpal.androidterm.emulatorview;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Flooding the transcript while a scrollback limit is set, as TermSession
+ * does while fast-forwarding: the most recent lines and the lines from
+ * before the flood must survive.
+ */
+public class ScrollbackLimitTest extends AndroidTestCase {
+    private static final int COLUMNS = 10;
+    private static final int ROWS = 3;
+    private static final int HISTORY = 5;
+    private static final int LIMIT = 8;
+    private static final int FLOOD = 100;
+
+    private TranscriptScreen mScreen;
+    private int mLines;
+
+    private void newScreen(int totalRows) {
+        mScreen = new TranscriptScreen(COLUMNS, totalRows, ROWS, null);
+        mLines = 0;
+    }
+
+    private static String line(int i) {
+        return String.format("line %04d", i);
+    }
+
+    private void write(int row, int i) {
+        String text = line(i);
+        for (int x = 0; x < text.length(); x++) {
+            mScreen.set(x, row, text.charAt(x), TextStyle.kNormalTextStyle);
+        }
+    }
+
+    /**
+     * Write lines at the bottom of the screen, scrolling one line at a time.
+     */
+    private void writeLines(int count) {
+        for (int i = 0; i < count; i++) {
+            int row = mLines;
+            if (row >= ROWS) {
+                mScreen.scroll(0, ROWS, TextStyle.kNormalTextStyle);
+                row = ROWS - 1;
+            }
+            write(row, mLines++);
+        }
+    }
+
+    /**
+     * Write a screenful of lines at a time, scrolling them all at once, as
+     * the emulator does for a run of linefeeds.
+     */
+    private void writeScreens(int screens) {
+        for (int i = 0; i < screens; i++) {
+            mScreen.scroll(0, ROWS, ROWS, TextStyle.kNormalTextStyle);
+            for (int row = 0; row < ROWS; row++) {
+                write(row, mLines++);
+            }
+        }
+    }
+
+    private String rowText(int row) {
+        return mScreen.getSelectedText(0, row, COLUMNS - 1, row);
+    }
+
+    /**
+     * Check that the transcript holds the history, then the most recent
+     * lines, with at least LIMIT of the lines scrolled in since the limit
+     * was set and not much more.
+     */
+    private void assertKept() {
+        int rows = mScreen.getActiveTranscriptRows();
+        int kept = rows - HISTORY;
+        assertTrue(kept >= LIMIT);
+        assertTrue(kept <= LIMIT + LIMIT / 4);
+        for (int i = 0; i < HISTORY; i++) {
+            assertEquals(line(i), rowText(-rows + i));
+        }
+        for (int row = -kept; row < ROWS; row++) {
+            assertEquals(line(mLines - ROWS + row), rowText(row));
+        }
+    }
+
+    public void testKeepsMostRecentLines() {
+        newScreen(100);
+        writeLines(HISTORY + ROWS);
+        mScreen.setScrollbackLimit(LIMIT);
+        writeLines(FLOOD);
+        assertKept();
+    }
+
+    public void testKeepsMostRecentLinesScrolledTogether() {
+        newScreen(100);
+        writeLines(HISTORY + ROWS);
+        mScreen.setScrollbackLimit(LIMIT);
+        writeScreens(FLOOD / ROWS);
+        assertKept();
+    }
+
+    public void testKeepsMostRecentLinesOfFullTranscript() {
+        newScreen(HISTORY + LIMIT + LIMIT / 4 + ROWS);
+        writeLines(HISTORY + ROWS);
+        mScreen.setScrollbackLimit(LIMIT);
+        writeLines(FLOOD);
+        assertKept();
+    }
+
+    public void testNoLimit() {
+        newScreen(200);
+        writeLines(HISTORY + ROWS);
+        mScreen.setScrollbackLimit(LIMIT);
+        writeLines(FLOOD);
+        mScreen.setScrollbackLimit(-1);
+        int rows = mScreen.getActiveTranscriptRows();
+        writeLines(FLOOD);
+        assertEquals(rows + FLOOD, mScreen.getActiveTranscriptRows());
+        assertEquals(line(mLines - ROWS - 1), rowText(-1));
+    }
+}
@@ -0,0 +1,95 @@
+package jackpal.androidterm.emulatorview;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Rows kept in the overflow file once they no longer fit in the transcript,
+ * read back after the screen has changed width.
+ */
+public class TranscriptOverflowTest extends AndroidTestCase {
+    private static final int COLUMNS = 10;
+    private static final int ROWS = 3;
+    private static final int TOTAL_ROWS = 8;
+    private static final int LINES = 20;
+
+    private TranscriptScreen mScreen;
+
+    public void setUp() {
+        mScreen = new TranscriptScreen(COLUMNS, TOTAL_ROWS, ROWS, null);
+        mScreen.setOverflowDirectory(getContext().getCacheDir());
+        for (int i = 0; i < LINES; i++) {
+            int row = i;
+            if (row >= ROWS) {
+                mScreen.scroll(0, ROWS, TextStyle.kNormalTextStyle);
+                row = ROWS - 1;
+            }
+            String text = line(i);
+            for (int x = 0; x < text.length(); x++) {
+                mScreen.set(x, row, text.charAt(x), TextStyle.kNormalTextStyle);
+            }
+        }
+    }
+
+    public void tearDown() {
+        mScreen.finish();
+    }
+
+    private static String line(int i) {
+        return String.format("line %02d ab", i);
+    }
+
+    /**
+     * The row holding a line, once the screen has been resized; the resize
+     * keeps only the rows in the overflow.
+     */
+    private int overflowRow(int i) {
+        return -mScreen.getActiveTranscriptRows() + i;
+    }
+
+    public void testKeepsRows() {
+        int rows = mScreen.getActiveTranscriptRows();
+        assertEquals(LINES - ROWS, rows);
+        for (int i = 0; i < LINES; i++) {
+            assertEquals(line(i), mScreen.getSelectedText(0, -rows + i, COLUMNS - 1, -rows + i));
+        }
+    }
+
+    public void testTextAfterNarrowing() {
+        mScreen.resize(5, ROWS, TextStyle.kNormalTextStyle);
+
+        String text = mScreen.getTranscriptText();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(line(i), text.contains(line(i) + "\n"));
+        }
+    }
+
+    public void testSelectionAfterNarrowing() {
+        mScreen.resize(5, ROWS, TextStyle.kNormalTextStyle);
+
+        int row = overflowRow(3);
+        assertEquals("ne", mScreen.getSelectedText(2, row, 3, row));
+        // Selecting to the edge of the screen takes the rest of the row
+        assertEquals(line(3).substring(2), mScreen.getSelectedText(2, row, 4, row));
+        assertEquals(line(3) + "\n" + line(4),
+                mScreen.getSelectedText(0, row, 4, row + 1));
+    }
+
+    public void testTextAfterWidening() {
+        mScreen.resize(20, ROWS, TextStyle.kNormalTextStyle);
+
+        int row = overflowRow(7);
+        assertEquals(line(7), mScreen.getSelectedText(0, row, 19, row));
+        assertEquals("ab", mScreen.getSelectedText(8, row, 15, row));
+        assertEquals("", mScreen.getSelectedText(12, row, 19, row));
+    }
+
+    public void testDrawnRowsFitScreen() {
+        mScreen.resize(5, ROWS, TextStyle.kNormalTextStyle);
+
+        TranscriptRow view = new TranscriptRow();
+        assertTrue(mScreen.getRow(overflowRow(0), view));
+        assertEquals(5, view.getColumns());
+        assertEquals('l', view.getCodePoint(0));
+        assertEquals('e', view.getCodePoint(3));
+    }
+}
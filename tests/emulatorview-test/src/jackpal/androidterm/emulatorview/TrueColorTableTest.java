@@ -0,0 +1,55 @@
+package jackpal.androidterm.emulatorview;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Interning 24-bit colors in a TrueColorTable, before and after it fills up.
+ */
+public class TrueColorTableTest extends AndroidTestCase {
+    private TrueColorTable mTable;
+
+    public void setUp() {
+        mTable = new TrueColorTable();
+    }
+
+    /** Distinct colors, many of which land near each other in the hash. */
+    private static int color(int i) {
+        return (i * 512) & 0xffffff;
+    }
+
+    public void testSameColorSameIndex() {
+        int index = mTable.intern(0x123456);
+        mTable.intern(0x654321);
+        assertEquals(index, mTable.intern(0x123456));
+        assertTrue(index >= TextStyle.ciTrueColorBase);
+    }
+
+    public void testReusesLeastRecentlyInterned() {
+        int[] indices = new int[TrueColorTable.SIZE];
+        for (int i = 0; i < TrueColorTable.SIZE; i++) {
+            indices[i] = mTable.intern(color(i));
+        }
+        // Use every color but the first again, so the first is reused
+        for (int i = 1; i < TrueColorTable.SIZE; i++) {
+            assertEquals(indices[i], mTable.intern(color(i)));
+        }
+        int version = mTable.getVersion();
+        assertEquals(indices[0], mTable.intern(0xabcdef));
+        assertTrue(version != mTable.getVersion());
+
+        // The other colors are still where they were
+        for (int i = 1; i < TrueColorTable.SIZE; i++) {
+            assertEquals(indices[i], mTable.intern(color(i)));
+        }
+        assertEquals(indices[0], mTable.intern(0xabcdef));
+    }
+
+    public void testManyColors() {
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < 3 * TrueColorTable.SIZE; i++) {
+                int index = mTable.intern(color(i));
+                assertEquals(index, mTable.intern(color(i)));
+            }
+        }
+    }
+}
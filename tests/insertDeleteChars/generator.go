@@ -0,0 +1,34 @@
+// Generate screens full of East Asian wide characters, edited with insert
+// and delete character sequences, for timing block copies of full Unicode
+// rows.
+
+package main
+
+import (
+	"bufio"
+	"fmt"
+	"os"
+)
+
+func main() {
+	w := bufio.NewWriter(os.Stdout)
+	defer w.Flush()
+
+	c := 0
+	for screen := 0; screen < 200; screen++ {
+		for row := 1; row <= 24; row++ {
+			// 39 wide characters fill 78 columns of an 80-column row
+			fmt.Fprintf(w, "\x1b[%d;1H", row)
+			for col := 0; col < 39; col++ {
+				fmt.Fprintf(w, "%c", rune(0x4e00+c%20000))
+				c++
+			}
+			// ICH 2 and DCH 2 at the start of the row, each moving the
+			// rest of the row
+			for i := 0; i < 20; i++ {
+				fmt.Fprint(w, "\x1b[1G\x1b[2@\x1b[2P")
+			}
+		}
+	}
+	fmt.Fprint(w, "\x1b[H\x1b[2J")
+}